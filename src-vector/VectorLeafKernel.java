@@ -0,0 +1,138 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Class VectorLeafKernel tests one ray against several triangles of a kd-tree leaf at once,
+ * using the SIMD registers of the CPU through the Java Vector API(4 doubles per register
+ * with AVX2, 8 with AVX-512).
+ *
+ * The vertex and edge data of the triangles are copied out of the Mesh into one array per
+ * coordinate, in the order of KDTree.leafTriangles, so the triangles of a leaf are adjacent.
+ * The Moller-Trumbore solution is computed for all lanes with the same operations as
+ * Ray.solveMollerTrumbore(). Only the lanes that pass are given to Ray.intersectsTriangle(),
+ * in leaf order, which sets the hit. So the hits are the same as with the scalar kernel
+ * (except for NaN solutions of degenerate triangles, which are rejected here).
+ *
+ * The Vector API is an incubator module, so this class is kept in its own source root,
+ * which is compiled after src and only with the module :
+ *
+ * 	javac -d out src/*.java
+ * 	javac --add-modules jdk.incubator.vector -cp out -d out src-vector/*.java
+ *
+ * KDTree loads it by name, so the rest of the program builds and runs without it. The program
+ * must also be run with --add-modules jdk.incubator.vector, else KDTree uses the scalar kernel.
+ *
+ * @author Kirti M D
+ *
+ */
+public class VectorLeafKernel implements LeafKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final DoubleVector ONE = DoubleVector.broadcast(SPECIES, 1);
+
+	private Mesh mesh;
+	private int[] leafTriangles;
+
+	//p0, e1 = p1 - p0 and e2 = p2 - p0 of the triangle at each position of leafTriangles.
+	//The arrays are padded by one vector, so whole vectors can be read at the end of the last leaf
+	private double[] p0x, p0y, p0z, e1x, e1y, e1z, e2x, e2y, e2z;
+
+	/**
+	 * Copies the triangles of all leaves into the coordinate arrays
+	 *
+	 * @param mesh1				mesh of the tree
+	 * @param leafTriangles1	triangle indices of all leaves, see KDTree
+	 */
+	public VectorLeafKernel(Mesh mesh1, int[] leafTriangles1) {
+		mesh = mesh1;
+		leafTriangles = leafTriangles1;
+
+		int size = leafTriangles.length + SPECIES.length();
+		p0x = new double[size]; p0y = new double[size]; p0z = new double[size];
+		e1x = new double[size]; e1y = new double[size]; e1z = new double[size];
+		e2x = new double[size]; e2y = new double[size]; e2z = new double[size];
+		double[] pos = mesh.positions;
+		for(int k = 0; k < leafTriangles.length; k++) {
+			int tri = leafTriangles[k];
+			int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
+			p0x[k] = pos[i0]; p0y[k] = pos[i0 + 1]; p0z[k] = pos[i0 + 2];
+			e1x[k] = pos[i1] - pos[i0]; e1y[k] = pos[i1 + 1] - pos[i0 + 1]; e1z[k] = pos[i1 + 2] - pos[i0 + 2];
+			e2x[k] = pos[i2] - pos[i0]; e2y[k] = pos[i2 + 1] - pos[i0 + 1]; e2z[k] = pos[i2 + 2] - pos[i0 + 2];
+		}
+	}
+
+	/**
+	 * @return	no. of triangles tested per vector operation
+	 */
+	@Override
+	public int getLanes() {
+		return SPECIES.length();
+	}
+
+	/**
+	 * @return	bytes of the coordinate arrays
+	 */
+	@Override
+	public long getMemorySize() {
+		return 9*8L*p0x.length;
+	}
+
+	@Override
+	public boolean intersect(Ray ray, double[] o, double[] d, int offset, int count, Hit hit, boolean anyHit) {
+		DoubleVector dx = DoubleVector.broadcast(SPECIES, d[0]),
+					 dy = DoubleVector.broadcast(SPECIES, d[1]),
+					 dz = DoubleVector.broadcast(SPECIES, d[2]);
+		boolean found = false;
+		double maxDistance = hit.t;
+		int end = offset + count;
+		for(int k = offset; k < end; k += SPECIES.length()) {
+			DoubleVector ax = DoubleVector.fromArray(SPECIES, e1x, k), ay = DoubleVector.fromArray(SPECIES, e1y, k),
+						 az = DoubleVector.fromArray(SPECIES, e1z, k);
+			DoubleVector bx = DoubleVector.fromArray(SPECIES, e2x, k), by = DoubleVector.fromArray(SPECIES, e2y, k),
+						 bz = DoubleVector.fromArray(SPECIES, e2z, k);
+
+			//P = d x e2
+			DoubleVector px = dy.mul(bz).sub(dz.mul(by)), py = dz.mul(bx).sub(dx.mul(bz)), pz = dx.mul(by).sub(dy.mul(bx));
+			DoubleVector det = ax.mul(px).add(ay.mul(py)).add(az.mul(pz));
+			DoubleVector invDet = DoubleVector.broadcast(SPECIES, 1).div(det);
+
+			//T = o - p0
+			DoubleVector tx = DoubleVector.broadcast(SPECIES, o[0]).sub(DoubleVector.fromArray(SPECIES, p0x, k)),
+						 ty = DoubleVector.broadcast(SPECIES, o[1]).sub(DoubleVector.fromArray(SPECIES, p0y, k)),
+						 tz = DoubleVector.broadcast(SPECIES, o[2]).sub(DoubleVector.fromArray(SPECIES, p0z, k));
+
+			//Q = T x e1
+			DoubleVector qx = ty.mul(az).sub(tz.mul(ay)), qy = tz.mul(ax).sub(tx.mul(az)), qz = tx.mul(ay).sub(ty.mul(ax));
+
+			DoubleVector b1 = tx.mul(px).add(ty.mul(py)).add(tz.mul(pz)).mul(invDet);
+			DoubleVector b2 = dx.mul(qx).add(dy.mul(qy)).add(dz.mul(qz)).mul(invDet);
+			DoubleVector t = bx.mul(qx).add(by.mul(qy)).add(bz.mul(qz)).mul(invDet);
+
+			//inside the triangle : b1 >= 0, b2 >= 0, b1 <= 1 and b1 + b2 <= 1, i.e. the smallest of 
+			//b1, b2, 1 - b1 and 1 - (b1 + b2) is not negative(a difference has the sign of the comparison).
+			//In front of the origin and closer than the hit : the smaller of t and hit.t - t is positive.
+			//If det is 0, t is infinite or NaN and fails the second test
+			VectorMask<Double> inside = b1.min(b2).min(ONE.sub(b1)).min(ONE.sub(b1.add(b2))).compare(VectorOperators.GE, 0);
+			if(!inside.anyTrue()) continue;
+			VectorMask<Double> closer = t.min(DoubleVector.broadcast(SPECIES, hit.t).sub(t)).compare(VectorOperators.GT, 0);
+			if(!closer.anyTrue()) continue;
+
+			long lanes = inside.toLong() & closer.toLong();
+			if(end - k < SPECIES.length()) lanes &= (1L << (end - k)) - 1; //lanes past the leaf
+
+			//confirm the passing lanes in leaf order, so ties are resolved as by the scalar kernel
+			while(lanes != 0) {
+				int lane = Long.numberOfTrailingZeros(lanes);
+				lanes &= lanes - 1;
+				if(anyHit) hit.t = maxDistance;
+				if(ray.intersectsTriangle(mesh, leafTriangles[k + lane], hit)) {
+					if(anyHit) return true;
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,181 @@
+import java.util.Arrays;
+
+/**
+ * Class AdaptiveSampler decides how many samples each pixel gets, when super-sampling is adaptive.
+ *
+ * The samples of a pixel are the cells of its g x g jittered grid, the same rays as with the
+ * fixed grid. They are traced in rounds. The first round traces one sample per pixel. After
+ * each round, a pixel traced in that round gets more samples if the luminance of its samples
+ * varies(soft shadows, texture detail), or if it differs from a neighbouring pixel(edges), by
+ * more than the threshold. Its no. of samples per side then doubles, up to the whole g x g grid.
+ * Flat regions, e.g. the sky and plain walls, keep their single sample.
+ *
+ * For progressive rendering, a round can instead give every pixel one more sample.
+ * Sample s of a pixel is cell s % (g x g) of the grid, jittered with the seed and pass s/(g x g),
+ * so there can be more than g x g samples per pixel. Samples after the first g x g are
+ * jittered even for g = 1, whose first sample is the middle of the pixel.
+ *
+ * @author Kirti M D
+ *
+ */
+public class AdaptiveSampler {
+
+	private FrameBuffer frameBuffer;
+	private int g; //size of grid for super-sampling, g x g is the most samples per pixel
+	private double threshold; //largest luminance difference or standard deviation left unrefined
+	private int xMin, yMin, xMax, yMax; //pixels that are sampled, max excluded
+
+	private int[] order; //cells of the grid, cell = l*g + k, in the order they are traced
+	private int[] traced, target; //per pixel of the region, samples traced to target - 1 are traced next
+	private boolean[] tracedNow; //per pixel of the region, true if the last round traced it
+	private long samples; //no. of samples traced so far
+
+	/**
+	 * @param frameBuffer1	frame buffer the samples are added to
+	 * @param g1			size of grid for super-sampling
+	 * @param threshold1	luminance difference(0 to 1) above which a pixel gets more samples
+	 * @param xMin1, yMin1, xMax1, yMax1	pixels to sample, max excluded, e.g. the whole frame
+	 */
+	AdaptiveSampler(FrameBuffer frameBuffer1, int g1, double threshold1, int xMin1, int yMin1, int xMax1, int yMax1) {
+		frameBuffer = frameBuffer1;
+		g = g1;
+		threshold = threshold1;
+		xMin = xMin1; yMin = yMin1; xMax = xMax1; yMax = yMax1;
+		order = spreadOrder(g);
+
+		int size = (xMax - xMin)*(yMax - yMin);
+		traced = new int[size];
+		target = new int[size];
+		tracedNow = new boolean[size];
+		Arrays.fill(target, 1);
+	}
+
+	/**
+	 * @return	index of pixel (x, y) of the region in traced, target and tracedNow
+	 */
+	private int index(int x, int y) {
+		return (y - yMin)*(xMax - xMin) + x - xMin;
+	}
+
+	/**
+	 * Orders the cells of a g x g grid so that every prefix is spread over the pixel :
+	 * the middle cell first, then each time the cell farthest from all cells before it.
+	 */
+	private static int[] spreadOrder(int g) {
+		int[] order = new int[g*g];
+		double[] distance = new double[g*g]; //to the nearest ordered cell
+		Arrays.fill(distance, Double.MAX_VALUE);
+		int next = (g/2)*g + g/2;
+		for(int s = 0; s < g*g; s++) {
+			order[s] = next;
+			int k0 = next%g, l0 = next/g;
+			distance[next] = -1; //ordered
+			next = -1;
+			for(int cell = 0; cell < g*g; cell++) {
+				if(distance[cell] < 0) continue;
+				int dk = cell%g - k0, dl = cell/g - l0;
+				distance[cell] = Math.min(distance[cell], dk*dk + dl*dl);
+				if(next < 0 || distance[cell] > distance[next]) next = cell;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * @return	first sample of pixel (x, y) to trace in this round
+	 */
+	int getFrom(int x, int y) {
+		return traced[index(x, y)];
+	}
+
+	/**
+	 * @return	sample after the last one of pixel (x, y) to trace in this round
+	 */
+	int getTo(int x, int y) {
+		return target[index(x, y)];
+	}
+
+	/**
+	 * Creates the ray of sample s of pixel (x, y)
+	 *
+	 * @param seed	seed for the jitter
+	 */
+	Ray generateRay(Camera camera, int x, int y, int s, long seed) {
+		int cell = order[s%order.length];
+		return camera.generateRay(x*g + cell%g, y*g + cell/g, g, seed, s/order.length, g > 1 || s >= order.length);
+	}
+
+	/**
+	 * Ends a round, after all its samples have been added to the frame buffer.
+	 * Must not be called while a round is being traced.
+	 */
+	void endRound() {
+		for(int k = 0; k < traced.length; k++) {
+			samples += target[k] - traced[k];
+			tracedNow[k] = target[k] > traced[k];
+			traced[k] = target[k];
+		}
+	}
+
+	/**
+	 * Chooses the pixels to refine in the next round, among those traced in the last round.
+	 * A pixel gets at most g x g samples.
+	 *
+	 * @return	no. of pixels that get more samples, 0 when the image is finished
+	 */
+	int refine() {
+		int refined = 0;
+		for(int y = yMin; y < yMax; y++) {
+			for(int x = xMin; x < xMax; x++) {
+				int k = index(x, y);
+				if(!tracedNow[k] || traced[k] >= g*g) continue;
+				if(needsSamples(x, y)) {
+					int side = (int)Math.sqrt(traced[k]); //samples per side so far
+					target[k] = Math.min(g*g, 4*side*side);
+					refined++;
+				}
+			}
+		}
+		return refined;
+	}
+
+	/**
+	 * Gives every pixel one more sample in the next round
+	 */
+	void addSample() {
+		for(int k = 0; k < target.length; k++) target[k]++;
+	}
+
+	/**
+	 * @return	true if the samples of pixel (x, y) vary, or it differs from
+	 * 			one of its 8 neighbours, by more than the threshold.
+	 * 			Neighbours outside the sampled pixels are skipped, even if the frame buffer
+	 * 			has samples there(e.g. from another tile), so a tile is refined the same way
+	 * 			whatever was traced before it.
+	 */
+	private boolean needsSamples(int x, int y) {
+		if(Math.sqrt(frameBuffer.getVariance(x, y)) > threshold) return true;
+
+		double luminance = frameBuffer.getLuminance(x, y);
+		for(int y1 = Math.max(yMin, y - 1); y1 <= Math.min(yMax - 1, y + 1); y1++) {
+			for(int x1 = Math.max(xMin, x - 1); x1 <= Math.min(xMax - 1, x + 1); x1++) {
+				if(frameBuffer.getWeight(x1, y1) > 0 && Math.abs(frameBuffer.getLuminance(x1, y1) - luminance) > threshold) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return	no. of pixels that are sampled
+	 */
+	int getPixels() {
+		return (xMax - xMin)*(yMax - yMin);
+	}
+
+	/**
+	 * @return	no. of samples traced in the finished rounds
+	 */
+	public long getSamples() {
+		return samples;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Class Affine is a 4x4 matrix whose last row is (0, 0, 0, 1), i.e. a scale, rotation
+ * and translation. Only the top 3 rows are stored.
+ *
+ * Unlike the Jama matrices in Transform, applying it allocates nothing,
+ * so it can be used for every ray and every vertex.
+ *
+ * @author Kirti M D
+ *
+ */
+public class Affine {
+
+	//m[4*r + c] is row r, column c of the top 3 rows
+	private final double[] m = new double[12];
+
+	//transpose of the inverse of the top left 3x3, for normals
+	private final double[] n = new double[9];
+
+	/**
+	 * @param matrix	4x4(or 3x4) matrix, e.g. Matrix.getArray()
+	 */
+	Affine(double[][] matrix) {
+		for(int r = 0; r < 3; r++) {
+			for(int c = 0; c < 4; c++) m[4*r + c] = matrix[r][c];
+		}
+
+		//inverse transpose = cofactors/determinant
+		double a = m[0], b = m[1], c = m[2],
+			   d = m[4], e = m[5], f = m[6],
+			   g = m[8], h = m[9], i = m[10];
+		double c00 = e*i - f*h, c01 = -(d*i - f*g), c02 = d*h - e*g,
+			   c10 = -(b*i - c*h), c11 = a*i - c*g, c12 = -(a*h - b*g),
+			   c20 = b*f - c*e, c21 = -(a*f - c*d), c22 = a*e - b*d;
+		double det = a*c00 + b*c01 + c*c02;
+		double[] cofactors = {c00, c01, c02, c10, c11, c12, c20, c21, c22};
+		for(int k = 0; k < 9; k++) n[k] = cofactors[k]/det;
+	}
+
+	/**
+	 * Writes the transformed point (x, y, z, 1) into out[0..2]
+	 */
+	public void transformPoint(double x, double y, double z, double[] out) {
+		out[0] = m[0]*x + m[1]*y + m[2]*z + m[3];
+		out[1] = m[4]*x + m[5]*y + m[6]*z + m[7];
+		out[2] = m[8]*x + m[9]*y + m[10]*z + m[11];
+	}
+
+	/**
+	 * Writes the transformed direction (x, y, z, 0) into out[0..2]
+	 */
+	public void transformVector(double x, double y, double z, double[] out) {
+		out[0] = m[0]*x + m[1]*y + m[2]*z;
+		out[1] = m[4]*x + m[5]*y + m[6]*z;
+		out[2] = m[8]*x + m[9]*y + m[10]*z;
+	}
+
+	/**
+	 * Writes the transformed surface normal into out[0..2]. Normals are multiplied by the
+	 * inverse transpose, so they stay perpendicular to the transformed surface.
+	 * The result is not normalized.
+	 */
+	public void transformNormal(double x, double y, double z, double[] out) {
+		out[0] = n[0]*x + n[1]*y + n[2]*z;
+		out[1] = n[3]*x + n[4]*y + n[5]*z;
+		out[2] = n[6]*x + n[7]*y + n[8]*z;
+	}
+
+	/**
+	 * @return	true if every axis is mapped onto an axis, i.e. there is no rotation
+	 * 			other than by multiples of 90 degrees. Boxes stay boxes.
+	 */
+	public boolean keepsAxes() {
+		for(int c = 0; c < 3; c++) {
+			double max = Math.max(Math.abs(m[c]), Math.max(Math.abs(m[4 + c]), Math.abs(m[8 + c])));
+			int nonZero = 0;
+			for(int r = 0; r < 3; r++) {
+				if(Math.abs(m[4*r + c]) > 1e-12*max) nonZero++;
+			}
+			if(nonZero != 1) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return	the 12 entries of the top 3 rows, row by row
+	 */
+	public double[] getEntries() {
+		return m.clone();
+	}
+}
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class AnimationRender renders the frames of a camera path as a numbered image sequence :
+ *
+ * 	java -cp ... AnimationRender obj=sponza.obj path=flythrough.txt out=frames/sponza_%04d.png grid=2
+ *
+ * The scene and its kd-tree are loaded once for all frames. While a frame is traced, the one
+ * before it is converted and written by another thread, so the render threads do not wait for
+ * the encoder. At most one frame is waiting to be written.
+ *
+ * Values are those of BatchRender, and :
+ * 	path		camera path file, see CameraPath
+ * 	out			output images, .png or .pfm, with the frame no. as in String.format(e.g. %04d).
+ * 				Without a %, _%04d is added before the extension
+ * 	frames		no. of frames, default the frame of the last keyframe + 1
+ * 	first		frame to start from, e.g. to continue a sequence, default 0
+ * 	summary		file to which the time of each frame is also written
+ *
+ * @author Kirti M D
+ *
+ */
+public class AnimationRender {
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); //no window is opened
+
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		try {
+			values = BatchRender.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage()); //and the usage below
+		}
+		String pathFile = values.remove("path"), frames = values.remove("frames"), first = values.remove("first");
+		String out = values.get("out");
+		if(pathFile == null || out == null || !values.containsKey("obj") || !(out.endsWith(".png") || out.endsWith(".pfm"))) {
+			System.err.println("Usage: AnimationRender obj=<.obj file> path=<camera path file> out=<.png or .pfm files, e.g. frame_%04d.png> [name=value ...]");
+			System.exit(2);
+		}
+		if(out.indexOf('%') < 0) out = out.substring(0, out.length() - 4) + "_%04d" + out.substring(out.length() - 4);
+
+		try {
+			RenderJob job = new RenderJob(null);
+			World world = BatchRender.configure(values, job);
+			if(!new File(job.objFilePath).isFile()) throw new IllegalArgumentException("no such obj file: " + job.objFilePath);
+			CameraPath path = CameraPath.read(pathFile, values);
+			int firstFrame = (first != null) ? Integer.parseInt(first) : 0;
+			int noOfFrames = (frames != null) ? Integer.parseInt(frames) : path.getLastFrame() + 1;
+			List<String> summary = render(world, job, path, firstFrame, noOfFrames, out);
+
+			System.out.println();
+			for(String line : summary) System.out.println(line);
+			if(values.containsKey("summary")) {
+				try (PrintWriter writer = new PrintWriter(values.get("summary"), "UTF-8")) {
+					for(String line : summary) writer.println(line);
+				}
+			}
+		} catch (IOException | RuntimeException | InterruptedException | ExecutionException e) {
+			System.err.println("Animation failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Renders frames firstFrame to noOfFrames - 1 and writes them
+	 *
+	 * @param world		World with the options
+	 * @param job		values of the job, its eye, light and plane are set for each frame
+	 * @param out		output path, with the frame no. as in String.format()
+	 * @return			summary lines, one per frame and the total
+	 */
+	static List<String> render(World world, RenderJob job, CameraPath path, int firstFrame, int noOfFrames,
+							   String out) throws InterruptedException, ExecutionException {
+		List<String> summary = new ArrayList<String>();
+		summary.add("frame\toutput\ttrace ms\tsamples");
+		long startTime = System.currentTimeMillis();
+		Transform transform = job.createTransform();
+		Shape shape = world.loadShape(job.objFilePath, transform, world.isBaked(transform));
+		long loadTime = System.currentTimeMillis() - startTime;
+		File dir = new File(String.format(out, firstFrame)).getAbsoluteFile().getParentFile();
+		if(dir != null) dir.mkdirs();
+
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Future<?> lastWrite = null; //of the frame before
+		try {
+			for(int frame = firstFrame; frame < noOfFrames; frame++) {
+				path.apply(frame, job);
+				final FrameBuffer frameBuffer = world.render(job, shape);
+				final String file = String.format(out, frame);
+				summary.add(frame + "\t" + file + "\t" + world.getTraceTime() + "\t" + world.getSamples());
+
+				if(lastWrite != null) lastWrite.get(); //throws if it failed
+				lastWrite = writer.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							BatchRender.write(frameBuffer, file);
+						} catch (IOException e) {
+							throw new RuntimeException("cannot write " + file + ": " + e, e);
+						}
+						System.out.println("Wrote " + file);
+					}
+				});
+			}
+			if(lastWrite != null) lastWrite.get();
+		} finally {
+			writer.shutdown();
+		}
+
+		long totalTime = System.currentTimeMillis() - startTime;
+		int rendered = Math.max(0, noOfFrames - firstFrame);
+		summary.add("total\t" + rendered + " frames\t" + totalTime + " ms, scene " + loadTime + " ms\t" +
+					String.format("%.2f", rendered*1000d/Math.max(1, totalTime - loadTime)) + " frames/s");
+		return summary;
+	}
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Class BatchRender renders images without a window, e.g. on a render node.
+ * All values are given as name=value arguments, on the command line or in a job file :
+ *
+ * 	java -cp ... BatchRender obj=sponza.obj out=sponza.png width=1600 height=1200 grid=4
+ * 	java -cp ... BatchRender jobs=jobs.txt threads=8 summary=times.txt
+ *
+ * Each line of a job file is one job, with the same name=value pairs(# starts a comment).
+ * Values on the command line apply to every job, unless the job sets them.
+ * The jobs are rendered one after the other in the same JVM, so the later ones
+ * run with the code already compiled by the JIT.
+ *
+ * Job values are those of RenderJob(obj, width, height, eye, plane, light, lightSize,
+ * lightGrid, scale, rotate, translate, grid) and :
+ * 	out			output image, .png(8 bit, clamped) or .pfm(32 bit float radiance)
+ * 	threads, seed, tree(sah or median), cache, bake, packet, vector, adaptive
+ * 				the options of World, see its setters
+ * 	budget, spp	progressive rendering with a time budget in ms and a target no. of samples per pixel
+ * 	filter		reconstruction filter, box(default), gaussian or mitchell, see ReconstructionFilter
+ * 	filterRadius	its radius in pixels, at least 0.5, default 0.5 for box, 1.5 for gaussian, 2 for mitchell
+ * 	preview		true : write the output after every progressive pass
+ * 	summary		file to which the timing summary is also written
+ *
+ * @author Kirti M D
+ *
+ */
+public class BatchRender {
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); //no window is opened
+
+		List<Map<String, String>> jobs = null;
+		try {
+			jobs = readJobs(parse(args));
+		} catch (IOException e) {
+			System.err.println("Cannot read job file: " + e);
+			System.exit(2);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			jobs = null;
+		}
+		if(jobs == null || jobs.isEmpty() || !jobs.get(0).containsKey("obj")) {
+			System.err.println("Usage: BatchRender obj=<.obj file> out=<.png or .pfm file> [name=value ...]\n" +
+							   "       BatchRender jobs=<job file> [name=value ...]");
+			System.exit(2);
+		}
+
+		List<String> summary = new ArrayList<String>();
+		summary.add("job\toutput\tload ms\ttrace ms\tsamples\tsamples/s");
+		int failed = 0;
+		for(int i = 0; i < jobs.size(); i++) {
+			Map<String, String> values = jobs.get(i);
+			System.out.println("Job " + (i + 1) + " of " + jobs.size() + ": " + values);
+			try {
+				World world = render(values);
+				long samplesPerSecond = world.getSamples()*1000/Math.max(1, world.getTraceTime());
+				summary.add((i + 1) + "\t" + values.get("out") + "\t" + world.getLoadTime() + "\t" + world.getTraceTime() +
+							"\t" + world.getSamples() + "\t" + samplesPerSecond);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Job " + (i + 1) + " failed: " + e);
+				summary.add((i + 1) + "\t" + values.get("out") + "\tfailed: " + e);
+				failed++;
+			}
+		}
+
+		System.out.println();
+		for(String line : summary) System.out.println(line);
+		String summaryPath = jobs.get(0).get("summary");
+		if(summaryPath != null) {
+			try (PrintWriter out = new PrintWriter(summaryPath, "UTF-8")) {
+				for(String line : summary) out.println(line);
+			} catch (IOException e) {
+				System.err.println("Cannot write summary: " + e);
+			}
+		}
+		if(failed > 0) System.exit(1);
+	}
+
+	/**
+	 * Reads the job file named by the jobs value, if there is one
+	 *
+	 * @param defaults	values of the command line
+	 * @return			the values of each job, or defaults alone if there is no job file
+	 */
+	static List<Map<String, String>> readJobs(Map<String, String> defaults) throws IOException {
+		List<Map<String, String>> jobs = new ArrayList<Map<String, String>>();
+		if(!defaults.containsKey("jobs")) {
+			jobs.add(defaults);
+			return jobs;
+		}
+		for(String line : Files.readAllLines(new File(defaults.get("jobs")).toPath(), StandardCharsets.UTF_8)) {
+			int comment = line.indexOf('#');
+			if(comment >= 0) line = line.substring(0, comment);
+			if(line.trim().isEmpty()) continue;
+			Map<String, String> job = new LinkedHashMap<String, String>(defaults);
+			job.putAll(parse(line.trim().split("\\s+")));
+			jobs.add(job);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Reads name=value arguments, in order, so later ones replace earlier ones
+	 */
+	static Map<String, String> parse(String[] args) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq <= 0) throw new IllegalArgumentException("expected name=value: " + arg);
+			values.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return values;
+	}
+
+	/**
+	 * Renders one job and writes its output
+	 *
+	 * @return	the World that rendered it, for the timings
+	 */
+	static World render(Map<String, String> values) throws IOException {
+		RenderJob job = new RenderJob(null);
+		World world = configure(values, job);
+		final String out = values.get("out");
+		if(out == null || !(out.endsWith(".png") || out.endsWith(".pfm"))) {
+			throw new IllegalArgumentException("out must be a .png or .pfm file: " + out);
+		}
+		if(!new File(job.objFilePath).isFile()) throw new IllegalArgumentException("no such obj file: " + job.objFilePath);
+		if(Boolean.parseBoolean(values.get("preview"))) {
+			world.setFrameListener(new FrameListener() {
+				@Override
+				public void frameRendered(FrameBuffer frameBuffer, int pass, boolean last) {
+					if(last) return; //written below
+					try {
+						write(frameBuffer, out);
+					} catch (IOException e) {
+						System.err.println("Cannot write preview: " + e);
+					}
+				}
+			});
+		}
+
+		FrameBuffer frameBuffer = world.render(job);
+		write(frameBuffer, out);
+		System.out.println("Wrote " + out);
+		return world;
+	}
+
+	/**
+	 * Sets the values of a job, and creates a World with the options among the values.
+	 * Values that are not used here(out, preview, jobs, summary) are skipped.
+	 *
+	 * @param values	name=value pairs, see the class comment
+	 * @param job		receives the job values
+	 * @return			World with the options
+	 * @throws IllegalArgumentException	for unknown names, bad values or no obj value.
+	 * 									The obj file is not checked, as it may only be on the workers
+	 */
+	static World configure(Map<String, String> values, RenderJob job) {
+		World world = new World();
+		long timeBudget = -1;
+		int targetSamples = 0;
+		int filterType = ReconstructionFilter.BOX;
+		double filterRadius = 0;
+		for(Map.Entry<String, String> e : values.entrySet()) {
+			String name = e.getKey(), value = e.getValue();
+			if(job.set(name, value)) continue;
+			switch(name) {
+				case "threads" : world.setThreads(Integer.parseInt(value)); break;
+				case "seed" : world.setSeed(Long.parseLong(value)); break;
+				case "tree" :
+					if(value.equalsIgnoreCase("sah")) world.setTreeBuilder(KDTree.SAH);
+					else if(value.equalsIgnoreCase("median")) world.setTreeBuilder(KDTree.MEDIAN);
+					else throw new IllegalArgumentException("tree must be sah or median: " + value);
+					break;
+				case "cache" : world.setSceneCache(Boolean.parseBoolean(value)); break;
+				case "bake" : world.setBakeTransform(Boolean.parseBoolean(value)); break;
+				case "packet" : world.setPacketSize(Integer.parseInt(value)); break;
+				case "vector" : world.setVectorKernel(Boolean.parseBoolean(value)); break;
+				case "adaptive" : world.setAdaptiveThreshold(Double.parseDouble(value)); break;
+				case "budget" : timeBudget = Long.parseLong(value); break;
+				case "spp" : targetSamples = Integer.parseInt(value); break;
+				case "filter" : filterType = ReconstructionFilter.parseType(value); break;
+				case "filterRadius" : filterRadius = Double.parseDouble(value); break;
+				case "out" : case "preview" : case "jobs" : case "summary" : break;
+				default : throw new IllegalArgumentException("unknown value: " + name);
+			}
+		}
+		if(job.objFilePath == null) throw new IllegalArgumentException("no obj");
+		if(job.width <= 0 || job.height <= 0) throw new IllegalArgumentException("width and height must be > 0: " + job.width + " x " + job.height);
+		if(job.grid <= 0) throw new IllegalArgumentException("grid must be > 0: " + job.grid);
+		if(timeBudget >= 0 || targetSamples > 0) world.setProgressive(Math.max(0, timeBudget), targetSamples);
+		world.setFilter(filterType, filterRadius);
+		return world;
+	}
+
+	/**
+	 * Writes the image as .png or .pfm, depending on the extension of the path
+	 */
+	static void write(FrameBuffer frameBuffer, String path) throws IOException {
+		if(path.endsWith(".pfm")) {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+				frameBuffer.writePFM(out);
+			}
+		} else {
+			ImageIO.write(frameBuffer.toImage(), "png", new File(path));
+		}
+	}
+}
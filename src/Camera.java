@@ -0,0 +1,103 @@
+import java.util.SplittableRandom;
+
+/**
+ * Class Camera stores the eye position and the image plane,
+ * and generates the primary ray for any sample on the image plane.
+ * Rays are created only when they are traced, so no per-sample
+ * arrays are needed.
+ *
+ * @author Kirti M D
+ *
+ */
+public class Camera {
+
+	double[] eye;
+	double imagePlaneZ;
+	int width, height; //output image size
+	double imagePlaneXMin, imagePlaneXMax, imagePlaneYMin, imagePlaneYMax;
+
+	/**
+	 * Places the image plane at z = imagePlaneZ, centered in front of the eye.
+	 * The image plane has the same size as the output image.
+	 *
+	 * @param eye1			camera position
+	 * @param imagePlaneZ1	z coordinate of the image plane
+	 * @param width1		output image width
+	 * @param height1		output image height
+	 */
+	Camera(double[] eye1, double imagePlaneZ1, int width1, int height1) {
+		eye = eye1;
+		imagePlaneZ = imagePlaneZ1;
+		width = width1;
+		height = height1;
+
+		double imagePlaneHt = height;
+		double imagePlaneWidth = width;
+		imagePlaneXMin = eye[0] - imagePlaneWidth*0.5d; imagePlaneXMax = eye[0] + imagePlaneWidth*0.5d;
+		imagePlaneYMin = eye[1] - imagePlaneHt*0.5d; imagePlaneYMax = eye[1] + imagePlaneHt*0.5d;
+	}
+
+	/**
+	 * Creates the ray through sample (i, j) of a grid with g x g samples per pixel.
+	 * Sample i lies in pixel column i/g and sample j in pixel row j/g.
+	 * For g > 1 the sample is jittered inside its cell. The noise depends only on
+	 * the seed, the pass and (i, j), so the image does not change with the order of tracing.
+	 *
+	 * @param i		sample column, 0 to g*width - 1
+	 * @param j		sample row, 0 to g*height - 1
+	 * @param g		size of grid for super-sampling
+	 * @param seed	seed for the jitter
+	 * @return		primary ray from the eye through the sample
+	 */
+	public Ray generateRay(int i, int j, int g, long seed) {
+		return generateRay(i, j, g, seed, 0, g > 1);
+	}
+
+	/**
+	 * Creates the ray through sample (i, j), see generateRay(int, int, int, long)
+	 *
+	 * @param pass		no. of times this cell was sampled before, each pass gets other noise
+	 * @param jitter	true : jitter the sample inside its cell, false : take the middle of the cell
+	 */
+	public Ray generateRay(int i, int j, int g, long seed, int pass, boolean jitter) {
+		double incX = (imagePlaneXMax - imagePlaneXMin)/(g*width);
+		double incY = (imagePlaneYMax - imagePlaneYMin)/(g*height);
+
+		//lower left corner of the cell of the sample
+		double xMin = imagePlaneXMin + i*incX, yMin = imagePlaneYMax - (j + 1)*incY;
+
+		double x, y;
+		if(jitter) {
+			//seed and pass are hashed first, as seed + pass ^ (i, j) would give pass p of cell j
+			//the noise of pass q of cell j ^ p ^ q
+			long passSeed = mix64(seed*0x9e3779b97f4a7c15L + pass);
+			SplittableRandom random = new SplittableRandom(passSeed ^ (((long)i << 32) | (j & 0xffffffffL)));
+			x = xMin + random.nextDouble()*incX;
+			y = yMin + random.nextDouble()*incY;
+		} else { //middle of the cell
+			x = xMin + incX*0.5d;
+			y = yMin + incY*0.5d;
+		}
+		double dx = x - eye[0], dy = y - eye[1], dz = imagePlaneZ - eye[2];
+		Ray ray = new Ray(eye[0], eye[1], eye[2], dx, dy, dz);
+		ray.sampleX = (x - imagePlaneXMin)/(incX*g);
+		ray.sampleY = (imagePlaneYMax - y)/(incY*g);
+		ray.spread = incX/Math.sqrt(dx*dx + dy*dy + dz*dz); //one sample cell, seen from the eye
+		return ray;
+	}
+
+	/**
+	 * @return	z with its bits mixed, the finalizer of SplitMix64
+	 */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30))*0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27))*0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public String toString() {
+		return "Camera at (" + eye[0] + ", " + eye[1] + ", " + eye[2] + ")" +
+			   ", focal plane at z = " + imagePlaneZ;
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Class CameraPath moves the camera, and optionally the light, through keyframes.
+ * Each line of a path file is one keyframe, with the frame no. and the values at that frame :
+ *
+ * 	frame=0		eye=230,350,1100	light=0,700,200
+ * 	frame=60	eye=0,500,2500
+ * 	frame=120	eye=-400,300,1500	plane=400
+ *
+ * Only eye, light and plane can be set(# starts a comment). Values a keyframe does not set
+ * are those of the job. Between keyframes the values follow a Catmull-Rom spline, which passes
+ * through every keyframe without the sudden turns of straight lines. The scene transform
+ * is not animated, so every frame uses the same kd-tree.
+ *
+ * @author Kirti M D
+ *
+ */
+public class CameraPath {
+
+	private int[] frames; //frame no. of each keyframe, increasing
+	private RenderJob[] keys; //eye, light and plane at each keyframe
+
+	CameraPath(int[] frames1, RenderJob[] keys1) {
+		frames = frames1;
+		keys = keys1;
+	}
+
+	/**
+	 * Reads a path file
+	 *
+	 * @param path		path file, see the class comment
+	 * @param values	values of the job, used for what a keyframe does not set
+	 * @return			the path
+	 * @throws IllegalArgumentException	for other values, frames out of order or no keyframe
+	 */
+	static CameraPath read(String path, Map<String, String> values) throws IOException {
+		ArrayList<Integer> frameList = new ArrayList<Integer>();
+		ArrayList<RenderJob> keyList = new ArrayList<RenderJob>();
+		for(String line : Files.readAllLines(new File(path).toPath(), StandardCharsets.UTF_8)) {
+			int comment = line.indexOf('#');
+			if(comment >= 0) line = line.substring(0, comment);
+			if(line.trim().isEmpty()) continue;
+
+			RenderJob key = new RenderJob(null);
+			for(Map.Entry<String, String> e : values.entrySet()) key.set(e.getKey(), e.getValue());
+			int frame = -1;
+			for(Map.Entry<String, String> e : BatchRender.parse(line.trim().split("\\s+")).entrySet()) {
+				String name = e.getKey();
+				if(name.equals("frame")) frame = Integer.parseInt(e.getValue());
+				else if(name.equals("eye") || name.equals("light") || name.equals("plane")) key.set(name, e.getValue());
+				else throw new IllegalArgumentException("only eye, light and plane can be animated: " + name);
+			}
+			if(frame < 0) throw new IllegalArgumentException("keyframe without frame: " + line);
+			if(!frameList.isEmpty() && frame <= frameList.get(frameList.size() - 1)) {
+				throw new IllegalArgumentException("keyframes must be in order of frame: " + line);
+			}
+			frameList.add(frame);
+			keyList.add(key);
+		}
+		if(keyList.isEmpty()) throw new IllegalArgumentException("no keyframes in " + path);
+
+		int[] frames = new int[frameList.size()];
+		for(int i = 0; i < frames.length; i++) frames[i] = frameList.get(i);
+		return new CameraPath(frames, keyList.toArray(new RenderJob[0]));
+	}
+
+	/**
+	 * @return	frame no. of the last keyframe
+	 */
+	int getLastFrame() {
+		return frames[frames.length - 1];
+	}
+
+	/**
+	 * Sets the eye, light position and image plane of a job for a frame.
+	 * Frames before the first or after the last keyframe get the values of that keyframe.
+	 */
+	void apply(int frame, RenderJob job) {
+		int k = 0; //keyframes k and k + 1 are around frame
+		while(k < frames.length - 2 && frames[k + 1] <= frame) k++;
+		int k0 = Math.max(0, k - 1), k1 = k, k2 = Math.min(frames.length - 1, k + 1), k3 = Math.min(frames.length - 1, k + 2);
+		double t = (k1 == k2) ? 0 : (double)(frame - frames[k1])/(frames[k2] - frames[k1]);
+		t = Math.max(0, Math.min(1, t));
+
+		job.eye = new double[3];
+		job.lightPosition = new double[3];
+		for(int i = 0; i < 3; i++) {
+			job.eye[i] = spline(keys[k0].eye[i], keys[k1].eye[i], keys[k2].eye[i], keys[k3].eye[i], t);
+			job.lightPosition[i] = spline(keys[k0].lightPosition[i], keys[k1].lightPosition[i],
+										  keys[k2].lightPosition[i], keys[k3].lightPosition[i], t);
+		}
+		job.imagePlaneZ = spline(keys[k0].imagePlaneZ, keys[k1].imagePlaneZ, keys[k2].imagePlaneZ, keys[k3].imagePlaneZ, t);
+	}
+
+	/**
+	 * Catmull-Rom spline between p1(t = 0) and p2(t = 1)
+	 */
+	private static double spline(double p0, double p1, double p2, double p3, double t) {
+		return 0.5*(2*p1 + (p2 - p0)*t + (2*p0 - 5*p1 + 4*p2 - p3)*t*t + (3*p1 - p0 - 3*p2 + p3)*t*t*t);
+	}
+}
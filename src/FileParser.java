@@ -1,11 +1,17 @@
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.imageio.ImageIO;
 
 /**
@@ -15,187 +21,11 @@ import javax.imageio.ImageIO;
  */
 public class FileParser {	
 
-	/**
-	 * Loads obj file and 
-	 * @param objFilePath
-	 * @return
-	 *
-	 * Note: The method currently has some code in the end specifically for the Sponza model.
-	 */
-	public Shape parseObjAndMtlFile(String objFilePath){//, String texFolderPath) {
-		
-		int i0 = objFilePath.lastIndexOf("/");
-		String folderPath = objFilePath.substring(0, i0 + 1); //needed to get mtl file
-		ArrayList<Point> vertices = new ArrayList<Point>();
-		ArrayList<double[]> normals = new ArrayList<double[]>();
-		ArrayList<Texture> textures = new ArrayList<Texture>();
-		ArrayList<String> objNames = new ArrayList<String>();
-		ArrayList<ArrayList<String>> objectsStr = new ArrayList<ArrayList<String>>(); //for storing input to be processed 
-		ArrayList<Material> materials = new ArrayList<Material>();
-		ArrayList<String> materialNames = new ArrayList<String>();
-		ArrayList<ArrayList<Triangle>> objects = new ArrayList<ArrayList<Triangle>>();
-		
-		//the sponza is made of multiple objects/shapes
-		//each object has a list of faces
-		//a face maybe triangle or a polygon
-		
-		BufferedReader reader;
-		try {
-			reader = new BufferedReader(new FileReader(objFilePath));
-		
-		
-			String line = reader.readLine();
-		
-			while(!line.startsWith("mtllib")) { 
-				line = reader.readLine();
-			}
-			//get mtl file name
-			if(line.startsWith("mtllib")) { //mtllib sponza.mtl
-				line = line.substring(7);
-				String mtlFilePath = folderPath + line;
-				materials = parseMTLFile(mtlFilePath);
-				
-				//store all material names in a separate array
-				for(Material m : materials) {
-					materialNames.add(m.name);
-				}
-			}
-		
-			//each object has v, vt and f data. 
-			//the line after the f data ends is : # 96 polygons
-			
-			line = reader.readLine();
-			while(line!= null) {
-				//vertices : v1, v2, v3, ...
-				if(line.startsWith("v ")) {
-					double[] pts = stringToDoubleArray("v ", line);
-					vertices.add(new Point(pts[0], pts[1], pts[2]));
-				}
-			
-			    //texture : vt1, vt2, vt3, ... 
-				if(line.startsWith("vt ")) {
-					double[] pts = stringToDoubleArray("vt", line);
-					textures.add(new Texture(pts[0], pts[1]));
-				}
-				
-				//normals
-				if(line.startsWith("vn ")) {
-					double[] n = stringToDoubleArray("vn", line);
-					normals.add(new double[]{n[0], n[1], n[2]});
-					
-				}
-				
-				//face data starts after all vertices have been read
-				//each face : v1/vt1  v2/vt2  v3/vt3
-				//face data starts with the line : g objName
-				if(line.startsWith("g ")) {
-					objNames.add(line.substring(2));
-					line = reader.readLine();
-					ArrayList<String> facesAndMtl = new ArrayList<String>();
-					while(!line.startsWith("#")) {
-						
-							facesAndMtl.add(line);
-						
-						line = reader.readLine();
-					}
-					objectsStr.add(facesAndMtl);
-				}
-				line = reader.readLine();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}	
-		
-		int noOfSmoothingGroups = 0;
-		//create triangles for all objects	
-		for(int i = 0; i < objectsStr.size(); i++) {
-			ArrayList<Triangle> oneObject = new ArrayList<Triangle>();
-			ArrayList<String> facesAndMtl = objectsStr.get(i);
-			int noOfTri = 0, noOfPoly = 0;
-			Material currentMat = null; int currentSmoothingGroup = 0;
-			for(int j = 0; j < facesAndMtl.size(); j++) {
-				String fm = facesAndMtl.get(j);
-				if(fm.startsWith("usemtl")) {
-					String matName = fm.substring(7);
-					int matIndex = materialNames.indexOf(matName);
-					if(matIndex != -1)
-						currentMat = materials.get(matIndex);
-					else System.out.println("Material "+matName +" not found.");
-				}
-				if(fm.startsWith("s")) {//smoothing group
-					fm = fm.substring(2);
-					if(fm.startsWith("off")) {currentSmoothingGroup = -1;}
-					else currentSmoothingGroup = Integer.parseInt(fm);
-					
-					if(currentSmoothingGroup > noOfSmoothingGroups)
-						noOfSmoothingGroups = currentSmoothingGroup;
-				}
-				if(fm.startsWith("f ")) {
-					fm = fm.substring(2);
-					String[] face = fm.split(" ");
-					int[] v = new int[face.length], t = new int[face.length], n = new int[face.length];
-					//get the vertex, texture and normal indices
-					for(int k = 0; k < face.length; k++) { //face length = 3 or 4
-						String[] vtn = face[k].split("/");
-						v[k] = Integer.parseInt(vtn[0]);
-						t[k] = Integer.parseInt(vtn[1]);
-						if(vtn.length > 2) //if normal is given
-							n[k] = Integer.parseInt(vtn[2]);
-						//else normal will be calculated later in the Triangle constructor
-						else n = null;
-					}
-					//Given indices start at 1. So subtract one
-					if(v.length == 3) {
-						Point p0 = vertices.get(v[0] - 1), p1 = vertices.get(v[1] - 1), p2 = vertices.get(v[2] - 1); 
-						Texture tex0 = textures.get(t[0] - 1), tex1 = textures.get(t[1] - 1), tex2 = textures.get(t[2] - 1);
-						if(normals.size() > 0){
-							p0.normal = normals.get(n[0] - 1); p1.normal = normals.get(n[1] - 1); p2.normal = normals.get(n[2] - 1);
-						}
-						Triangle tr1 = new Triangle(objNames.get(i), p0, p1, p2, tex0, tex1, tex2);
-						tr1.material = currentMat;
-						tr1.smoothingGroup = currentSmoothingGroup;
-						oneObject.add(tr1);
-						noOfTri++;
-					} else if(v.length == 4) { //polygon
-						Point p0 = vertices.get(v[0] - 1), p1 = vertices.get(v[1] - 1),
-							  p2 = vertices.get(v[2] - 1), p3 = vertices.get(v[3] - 1);
-						Texture tex0 = textures.get(t[0] - 1), tex1 = textures.get(t[1] - 1), 
-								tex2 = textures.get(t[2] - 1), tex3 = textures.get(t[3] - 1);
-
-						if(normals.size() > 0) {
-							p0.normal = normals.get(n[0] - 1); p1.normal = normals.get(n[1] - 1); 
-							p2.normal = normals.get(n[2] - 1); p3.normal = normals.get(n[3] - 1);
-						}
-						Triangle tr1 = new Triangle(objNames.get(i), p0, p1, p3, tex0, tex1, tex3);
-						Triangle tr2 = new Triangle(objNames.get(i), p1, p2, p3, tex1, tex2, tex3);
-						
-						//check if the vertices of either triangles are collinear
-						//(this is happening for a few objects)
-						//if the vertices are collinear, the triangle area = 0
-						//if so, divide the quadrilateral using the other diagonal
-						if(tr1.getArea() == 0 || tr2.getArea() == 0) {
-							tr1 = new Triangle(objNames.get(i), p0, p1, p2, tex0, tex1, tex2);
-							tr2 = new Triangle(objNames.get(i), p0, p2, p3, tex0, tex2, tex3);
-						}
-						
-						tr1.material = currentMat; tr1.smoothingGroup = currentSmoothingGroup;
-						tr2.material = currentMat; tr2.smoothingGroup = currentSmoothingGroup;
-						
-						oneObject.add(tr1);
-						oneObject.add(tr2);
-						noOfPoly++;
-					} else if(v.length > 4) {
-						System.out.println("****Polygon edges > 4");
-					}
-				}
-			}
-			objects.add(oneObject);
-		}
-		
-		
-		//to save time, remove some of the minor objects in the Sponza
+	static final int CHUNK_SIZE = 8 << 20; //bytes of the obj file parsed by one task
+	
+	//to save time, some of the minor objects in the Sponza are not rendered
+	private static final HashSet<String> SKIPPED_GROUPS = new HashSet<String>();
+	static {
 		ArrayList<String> dontRender = new ArrayList<String>();
 		String[] creepers = {"00","01","275","276","277","278","279","280","281"};
 		dontRender.addAll(Arrays.asList(creepers));
@@ -224,25 +54,197 @@ public class FileParser {
 		}
 				
 		//the object ids start with "sponza_"
-		for(int i = 0; i < dontRender.size(); i++) {
-			String s = "sponza_"+dontRender.get(i);
-			dontRender.set(i, s); 
+		for(String id : dontRender) {
+			SKIPPED_GROUPS.add("sponza_" + id);
 		}
+	}
+	
+	/**
+	 * Loads obj file and its mtl files.
+	 * 
+	 * The file is split into blocks of about CHUNK_SIZE bytes at line boundaries, 
+	 * and the blocks are parsed in parallel(see ObjChunk). The faces are then 
+	 * triangulated in file order, applying the usemtl, s and g statements
+	 * that come before them. Faces of the groups in SKIPPED_GROUPS are left out.
+	 * 
+	 * @param objFilePath	path to the .obj file
+	 * @return				Shape containing all faces
+	 */
+	public Shape parseObjAndMtlFile(String objFilePath){
+		
+		int i0 = objFilePath.lastIndexOf("/");
+		String folderPath = objFilePath.substring(0, i0 + 1); //needed to get mtl file
 		
+		ObjChunk[] chunks;
+		double[] positions, uvs, vns;
+		try(RandomAccessFile file = new RandomAccessFile(objFilePath, "r"); FileChannel channel = file.getChannel()) {
+			chunks = split(channel);
+			
+			//count the vertices of each block, then parse all blocks
+			runAll(chunks, ObjChunk.COUNT);
+			int noOfV = 0, noOfVt = 0, noOfVn = 0;
+			for(ObjChunk c : chunks) {
+				c.vOffset = noOfV; c.vtOffset = noOfVt; c.vnOffset = noOfVn;
+				noOfV += c.noOfV; noOfVt += c.noOfVt; noOfVn += c.noOfVn;
+			}
+			positions = new double[3*noOfV];
+			uvs = new double[2*noOfVt];
+			vns = new double[3*noOfVn];
+			for(ObjChunk c : chunks) {
+				c.positions = positions; c.uvs = uvs; c.vns = vns;
+			}
+			runAll(chunks, ObjChunk.PARSE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new Shape();
+		}
 		
-		System.out.println("Total no. of objects read: "+objects.size()); //381
-		int objCount = 0;
-		ArrayList<Triangle> faces = new ArrayList<Triangle>();
-		for(int i = 0; i < objects.size(); i++) { 
-			if(!dontRender.contains(objNames.get(i))) {
-				objCount++;
-				faces.addAll(objects.get(i));
+		//materials of all mtl files, looked up by name. The first one with a name is used
+		ArrayList<Material> materials = new ArrayList<Material>();
+		for(ObjChunk c : chunks) {
+			for(String mtllib : c.mtllibs) {
+				ArrayList<Material> m = parseMTLFile(folderPath + mtllib);
+				if(m != null) materials.addAll(m);
 			}
 		}
+		HashMap<String, Integer> materialIndex = new HashMap<String, Integer>();
+		for(int m = materials.size() - 1; m >= 0; m--) {
+			materialIndex.put(materials.get(m).name, m);
+		}
 		
-		System.out.println("Total no. of objects in Shape: "+objCount); 
-		Shape shape = new Shape(vertices, faces, noOfSmoothingGroups);
-		return shape;
+		//triangulate the faces in file order
+		int noOfVertices = positions.length/3;
+		int[] vertexNormal = new int[noOfVertices]; //vn of each vertex, -1 if none. The last one given is used
+		Arrays.fill(vertexNormal, -1);
+		ObjChunk.IntArray triVertices = new ObjChunk.IntArray(), triUVs = new ObjChunk.IntArray(),
+						  triSmoothingGroups = new ObjChunk.IntArray(), triMaterials = new ObjChunk.IntArray();
+		int currentMat = -1, currentSmoothingGroup = 0, noOfSmoothingGroups = 0;
+		boolean skipped = false;
+		int noOfGroups = 0, noOfSkippedGroups = 0;
+		for(ObjChunk c : chunks) {
+			int s = 0; //next statement
+			for(int p = 0; p <= c.getNoOfPolygons(); p++) {
+				for(; s < c.statementType.size && c.statementPolygon.get(s) == p; s++) {
+					int value = c.statementValue.get(s);
+					switch(c.statementType.get(s)) {
+					case ObjChunk.USEMTL :
+						String matName = c.names.get(value);
+						Integer matIndex = materialIndex.get(matName);
+						if(matIndex != null) currentMat = matIndex;
+						else System.out.println("Material "+matName +" not found.");
+						break;
+					case ObjChunk.SMOOTHING :
+						currentSmoothingGroup = value;
+						if(currentSmoothingGroup > noOfSmoothingGroups)
+							noOfSmoothingGroups = currentSmoothingGroup;
+						break;
+					case ObjChunk.GROUP :
+						skipped = SKIPPED_GROUPS.contains(c.names.get(value));
+						noOfGroups++;
+						if(skipped) noOfSkippedGroups++;
+						break;
+					}
+				}
+				if(p == c.getNoOfPolygons()) break;
+				
+				int first = c.polygonStart.get(p), n = c.polygonStart.get(p + 1) - first;
+				for(int k = first; k < first + n; k++) {
+					if(c.cornerVn.get(k) >= 0) vertexNormal[c.cornerV.get(k)] = c.cornerVn.get(k);
+				}
+				if(skipped || n < 3) continue;
+				
+				//a quadrilateral is divided along the diagonal from corner 1 to 3, or if either 
+				//triangle has no area(this is happening for a few objects), along the other diagonal.
+				//Larger polygons are divided into a fan of triangles around corner 0
+				int[] corners;
+				if(n == 4 && (area(positions, c, first, 0, 1, 3) == 0 || area(positions, c, first, 1, 2, 3) == 0)) {
+					corners = new int[]{0, 1, 2, 0, 2, 3};
+				} else if(n == 4) {
+					corners = new int[]{0, 1, 3, 1, 2, 3};
+				} else {
+					corners = new int[3*(n - 2)];
+					for(int t = 0; t < n - 2; t++) {
+						corners[3*t] = 0; corners[3*t + 1] = t + 1; corners[3*t + 2] = t + 2;
+					}
+				}
+				for(int k = 0; k < corners.length; k++) {
+					triVertices.add(c.cornerV.get(first + corners[k]));
+					triUVs.add(c.cornerVt.get(first + corners[k]));
+				}
+				for(int t = 0; t < corners.length/3; t++) {
+					triSmoothingGroups.add(currentSmoothingGroup);
+					triMaterials.add(currentMat);
+				}
+			}
+		}
+		
+		double[] normals = new double[3*noOfVertices];
+		for(int v = 0; v < noOfVertices; v++) {
+			if(vertexNormal[v] >= 0) System.arraycopy(vns, 3*vertexNormal[v], normals, 3*v, 3);
+		}
+		
+		System.out.println("Total no. of objects read: "+noOfGroups); 
+		System.out.println("Total no. of objects in Shape: "+(noOfGroups - noOfSkippedGroups)); 
+		Mesh mesh = new Mesh(positions, normals, uvs, 
+							 Arrays.copyOf(triVertices.data, triVertices.size), Arrays.copyOf(triUVs.data, triUVs.size),
+							 Arrays.copyOf(triSmoothingGroups.data, triSmoothingGroups.size), 
+							 Arrays.copyOf(triMaterials.data, triMaterials.size),
+							 materials.toArray(new Material[materials.size()]));
+		return new Shape(mesh, noOfSmoothingGroups);
+	}
+	
+	/**
+	 * Divides the file into blocks of about CHUNK_SIZE bytes, each ending after a new line
+	 */
+	private ObjChunk[] split(FileChannel channel) throws IOException {
+		ArrayList<ObjChunk> chunks = new ArrayList<ObjChunk>();
+		long size = channel.size(), start = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while(start < size) {
+			long end = Math.min(start + CHUNK_SIZE, size);
+			//move end past the next new line
+			while(end < size) {
+				buffer.clear();
+				int n = channel.read(buffer, end);
+				int i = 0;
+				while(i < n && buffer.get(i) != '\n') i++;
+				end += i;
+				if(i < n) { end++; break; }
+			}
+			chunks.add(new ObjChunk(channel, start, end - start));
+			start = end;
+		}
+		return chunks.toArray(new ObjChunk[chunks.size()]);
+	}
+	
+	/**
+	 * Runs one pass of all blocks on the ForkJoinPool
+	 */
+	private void runAll(final ObjChunk[] chunks, int pass) {
+		for(ObjChunk c : chunks) {
+			c.reinitialize();
+			c.pass = pass;
+		}
+		ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(chunks);
+			}
+		});
+	}
+	
+	/**
+	 * @return	twice the area of the triangle formed by corners a, b and c 
+	 * 			of the polygon starting at corner first
+	 */
+	private double area(double[] positions, ObjChunk chunk, int first, int a, int b, int c) {
+		int i0 = 3*chunk.cornerV.get(first + a), i1 = 3*chunk.cornerV.get(first + b), i2 = 3*chunk.cornerV.get(first + c);
+		double ax = positions[i1] - positions[i0], ay = positions[i1 + 1] - positions[i0 + 1], az = positions[i1 + 2] - positions[i0 + 2];
+		double bx = positions[i2] - positions[i0], by = positions[i2 + 1] - positions[i0 + 1], bz = positions[i2 + 2] - positions[i0 + 2];
+		double nx = ay*bz - az*by, ny = -(ax*bz - az*bx), nz = ax*by - ay*bx;
+		return Math.sqrt(nx*nx + ny*ny + nz*nz);
 	}
 	
 	
@@ -254,7 +256,7 @@ public class FileParser {
 	 * @param mtlFilePath 
 	 * @return list of Material objects
 	 */
-	private ArrayList<Material> parseMTLFile(String mtlFilePath) {
+	ArrayList<Material> parseMTLFile(String mtlFilePath) {
 		int i1 = mtlFilePath.lastIndexOf("/");
 		String folderPath = mtlFilePath.substring(0, i1+1);
 		ArrayList<Material> materials = null;
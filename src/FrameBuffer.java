@@ -0,0 +1,282 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class FrameBuffer accumulates the radiance of all samples that fall
+ * inside each output pixel. Its size depends only on the output image,
+ * not on the number of samples per pixel.
+ *
+ * With a reconstruction filter, each sample is also added, weighted by the filter, to the
+ * pixels around it, see setFilter(). These filtered sums are kept apart, as the adaptive
+ * sampler needs the samples of each pixel on their own.
+ *
+ * @author Kirti M D
+ *
+ */
+public class FrameBuffer {
+
+	int width, height;
+	private double[] sumR, sumG, sumB; //sum of sample radiance, one entry per pixel
+	private double[] weight; //sum of sample weights, one entry per pixel
+	private double[] sumLuminance2; //sum of squared sample luminance, for the variance
+
+	//Samples near the edge of a tile reach pixels that other threads add to at the same time.
+	//The filtered sums are fixed point longs, whose sum does not depend on the order of adding,
+	//so the image is the same whatever the order of tracing, also from RenderCoordinator.
+	private static final double FIXED_POINT = 1L << 32; //a value v is stored as round(v*FIXED_POINT)
+	private ReconstructionFilter filter; //null : each sample counts for its own pixel only
+	private int border; //pixels on each side that a sample reaches, see ReconstructionFilter.getBorder()
+	private AtomicLongArray filtered; //filtered R, G, B and weight, 4 entries per pixel
+
+	FrameBuffer(int width1, int height1) {
+		width = width1;
+		height = height1;
+		sumR = new double[width*height];
+		sumG = new double[width*height];
+		sumB = new double[width*height];
+		weight = new double[width*height];
+		sumLuminance2 = new double[width*height];
+	}
+
+	/**
+	 * Sets the filter with which samples are added to the pixels around them.
+	 * Must be called before any sample is added.
+	 */
+	void setFilter(ReconstructionFilter filter1) {
+		if(filter1.isIdentity()) {
+			filter = null;
+			border = 0;
+			filtered = null;
+		} else {
+			filter = filter1;
+			border = filter.getBorder();
+			filtered = new AtomicLongArray(4*width*height);
+		}
+	}
+
+	/**
+	 * Adds one sample to pixel (x, y), and to the filtered sums of the pixels it reaches.
+	 * A pixel must only be written by one thread at a time, the pixels around it can be
+	 * written by others.
+	 *
+	 * @param x			pixel column
+	 * @param y			pixel row
+	 * @param sx, sy	position of the sample in the image, in pixels, see Camera.generateRay()
+	 * @param color		RGB radiance of the sample
+	 */
+	public void addSample(int x, int y, double sx, double sy, double[] color) {
+		int k = y*width + x;
+		sumR[k] += color[0];
+		sumG[k] += color[1];
+		sumB[k] += color[2];
+		weight[k] += 1;
+		double luminance = luminance(color[0], color[1], color[2]);
+		sumLuminance2[k] += luminance*luminance;
+		if(filtered == null) return;
+
+		int iMin = Math.max(0, x - border), iMax = Math.min(width - 1, x + border);
+		double[] wx = new double[iMax - iMin + 1];
+		for(int i = iMin; i <= iMax; i++) wx[i - iMin] = filter.evaluate(Math.abs(i + 0.5 - sx));
+		for(int j = Math.max(0, y - border); j <= Math.min(height - 1, y + border); j++) {
+			double wy = filter.evaluate(Math.abs(j + 0.5 - sy));
+			if(wy == 0) continue;
+			for(int i = iMin; i <= iMax; i++) {
+				double w = wy*wx[i - iMin];
+				if(w == 0) continue;
+				int f = 4*(j*width + i);
+				filtered.addAndGet(f, Math.round(w*color[0]*FIXED_POINT));
+				filtered.addAndGet(f + 1, Math.round(w*color[1]*FIXED_POINT));
+				filtered.addAndGet(f + 2, Math.round(w*color[2]*FIXED_POINT));
+				filtered.addAndGet(f + 3, Math.round(w*FIXED_POINT));
+			}
+		}
+	}
+
+	/**
+	 * @return	no. of samples added to pixel (x, y)
+	 */
+	public double getWeight(int x, int y) {
+		return weight[y*width + x];
+	}
+
+	/**
+	 * @return	average luminance of pixel (x, y), 0 if it has no samples
+	 */
+	public double getLuminance(int x, int y) {
+		int k = y*width + x;
+		if(weight[k] == 0) return 0;
+		return luminance(sumR[k], sumG[k], sumB[k])/weight[k];
+	}
+
+	/**
+	 * @return	variance of the sample luminance in pixel (x, y), 0 if it has fewer than 2 samples
+	 */
+	public double getVariance(int x, int y) {
+		int k = y*width + x;
+		if(weight[k] < 2) return 0;
+		double mean = luminance(sumR[k], sumG[k], sumB[k])/weight[k];
+		return Math.max(0, sumLuminance2[k]/weight[k] - mean*mean);
+	}
+
+	private static double luminance(double R, double G, double B) {
+		return 0.299*R + 0.587*G + 0.114*B;
+	}
+
+	/**
+	 * @return	average RGB radiance of pixel (x, y)
+	 */
+	public double[] getColor(int x, int y) {
+		int k = y*width + x;
+		if(weight[k] == 0) return new double[3];
+		return new double[]{sumR[k]/weight[k], sumG[k]/weight[k], sumB[k]/weight[k]};
+	}
+
+	/**
+	 * Reconstructs the image with the filter : the average of a pixel becomes the weighted
+	 * average of the samples that reach it. Pixels with more samples(see AdaptiveSampler) count more.
+	 * A pixel whose filtered weight is not above 0, e.g. if the negative lobes of a filter
+	 * outweigh its own samples, keeps the average of its own samples.
+	 *
+	 * @return	new frame buffer with the filtered sums, or this one if there is no filter
+	 */
+	public FrameBuffer reconstruct() {
+		if(filtered == null) return this;
+		FrameBuffer result = new FrameBuffer(width, height);
+		for(int k = 0; k < width*height; k++) {
+			double w = filtered.get(4*k + 3)/FIXED_POINT;
+			if(w > 0) {
+				result.sumR[k] = filtered.get(4*k)/FIXED_POINT;
+				result.sumG[k] = filtered.get(4*k + 1)/FIXED_POINT;
+				result.sumB[k] = filtered.get(4*k + 2)/FIXED_POINT;
+				result.weight[k] = w;
+			} else {
+				result.sumR[k] = sumR[k]; result.sumG[k] = sumG[k]; result.sumB[k] = sumB[k];
+				result.weight[k] = weight[k];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Converts the average radiance of every pixel to an image.
+	 * Values above 1, and below 0 from the negative lobes of a filter, are clamped.
+	 *
+	 * @return	the output image
+	 */
+	public BufferedImage toImage() {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				int k = y*width + x;
+				if(weight[k] == 0) continue;
+
+				double R = sumR[k]/weight[k], G = sumG[k]/weight[k], B = sumB[k]/weight[k];
+				R = Math.max(0, Math.min(1, R));
+				G = Math.max(0, Math.min(1, G));
+				B = Math.max(0, Math.min(1, B));
+
+				image.setRGB(x, y, new Color((float)R, (float)G, (float)B).getRGB());
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Writes the average radiance of every pixel as a PFM(portable float map) image :
+	 * 32 bit little endian RGB values, not clamped, rows from the bottom of the image.
+	 *
+	 * @param out	output stream, not closed
+	 */
+	public void writePFM(OutputStream out) throws IOException {
+		out.write(("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+		ByteBuffer row = ByteBuffer.allocate(12*width).order(ByteOrder.LITTLE_ENDIAN);
+		for(int y = height - 1; y >= 0; y--) {
+			row.clear();
+			for(int x = 0; x < width; x++) {
+				int k = y*width + x;
+				double w = (weight[k] == 0) ? 1 : weight[k];
+				row.putFloat((float)(sumR[k]/w)).putFloat((float)(sumG[k]/w)).putFloat((float)(sumB[k]/w));
+			}
+			out.write(row.array());
+		}
+	}
+
+	/**
+	 * Clears a tile and the filtered sums it reaches, so that only the samples traced next
+	 * are in them, e.g. for each tile of a RenderWorker
+	 *
+	 * @param xMin, yMin, xMax, yMax	pixels of the tile, max excluded
+	 */
+	public void clearTile(int xMin, int yMin, int xMax, int yMax) {
+		for(int y = yMin; y < yMax; y++) {
+			for(int x = xMin; x < xMax; x++) {
+				int k = y*width + x;
+				sumR[k] = sumG[k] = sumB[k] = weight[k] = sumLuminance2[k] = 0;
+			}
+		}
+		if(filtered == null) return;
+		for(int y = Math.max(0, yMin - border); y < Math.min(height, yMax + border); y++) {
+			for(int x = Math.max(0, xMin - border); x < Math.min(width, xMax + border); x++) {
+				for(int c = 0; c < 4; c++) filtered.set(4*(y*width + x) + c, 0);
+			}
+		}
+	}
+
+	/**
+	 * Writes the sums of the pixels of a tile, row by row, then the filtered sums of the tile
+	 * and its border, so that readTile() gives another frame buffer exactly the same pixels,
+	 * e.g. in RenderCoordinator. The tile should have been cleared, see clearTile().
+	 *
+	 * @param xMin, yMin, xMax, yMax	pixels of the tile, max excluded
+	 */
+	public void writeTile(DataOutputStream out, int xMin, int yMin, int xMax, int yMax) throws IOException {
+		for(int y = yMin; y < yMax; y++) {
+			for(int x = xMin; x < xMax; x++) {
+				int k = y*width + x;
+				out.writeDouble(sumR[k]); out.writeDouble(sumG[k]); out.writeDouble(sumB[k]);
+				out.writeDouble(weight[k]); out.writeDouble(sumLuminance2[k]);
+			}
+		}
+		out.writeInt(border);
+		if(filtered == null) return;
+		for(int y = Math.max(0, yMin - border); y < Math.min(height, yMax + border); y++) {
+			for(int x = Math.max(0, xMin - border); x < Math.min(width, xMax + border); x++) {
+				for(int c = 0; c < 4; c++) out.writeLong(filtered.get(4*(y*width + x) + c));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the pixels of a tile by those written by writeTile(), and adds its filtered sums,
+	 * which also reach the tiles around it
+	 *
+	 * @throws IOException	also if the tile was traced with another filter border
+	 */
+	public void readTile(DataInputStream in, int xMin, int yMin, int xMax, int yMax) throws IOException {
+		for(int y = yMin; y < yMax; y++) {
+			for(int x = xMin; x < xMax; x++) {
+				int k = y*width + x;
+				sumR[k] = in.readDouble(); sumG[k] = in.readDouble(); sumB[k] = in.readDouble();
+				weight[k] = in.readDouble(); sumLuminance2[k] = in.readDouble();
+			}
+		}
+		int tileBorder = in.readInt();
+		if(tileBorder != border) {
+			throw new IOException("tile traced with a filter border of " + tileBorder + " pixels, expected " + border);
+		}
+		if(filtered == null) return;
+		for(int y = Math.max(0, yMin - border); y < Math.min(height, yMax + border); y++) {
+			for(int x = Math.max(0, xMin - border); x < Math.min(width, xMax + border); x++) {
+				for(int c = 0; c < 4; c++) filtered.addAndGet(4*(y*width + x) + c, in.readLong());
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * Interface FrameListener receives the intermediate images of a progressive render,
+ * e.g. to show or save a preview while more samples are being traced.
+ *
+ * @author Kirti M D
+ *
+ */
+public interface FrameListener {
+
+	/**
+	 * Called on the rendering thread after every pass, when no samples are being added.
+	 * The frame buffer must not be kept, it changes in the next pass.
+	 *
+	 * @param frameBuffer	samples of all passes so far, e.g. frameBuffer.toImage()
+	 * @param pass			no. of passes traced, from 1
+	 * @param last			true if no more passes follow
+	 */
+	void frameRendered(FrameBuffer frameBuffer, int pass, boolean last);
+}
@@ -0,0 +1,26 @@
+
+/**
+ * Class Hit is the lightweight record of a ray-triangle intersection
+ * found during traversal. Only the closest hit is turned into a shaded
+ * Point, see Ray.createHitPoint().
+ *
+ * @author Kirti M D
+ *
+ */
+public class Hit {
+	double t; //distance from the ray origin
+	int triangle; //index in the Mesh, -1 if nothing was hit
+	double b1, b2; //barycentric coordinates of the hit on triangle
+
+	double[] candidate; //scratch space for the ray-triangle kernels : {b1, b2, t}
+
+	Hit() {
+		t = Double.MAX_VALUE;
+		triangle = -1;
+		candidate = new double[3];
+	}
+
+	public boolean found() {
+		return triangle >= 0;
+	}
+}
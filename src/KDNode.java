@@ -1,5 +1,3 @@
-import java.util.ArrayList;
-
 /**
  * Class KDNode represents a kd-tree node.
  * It may be the root, an intermediate node or a leaf.
@@ -8,21 +6,17 @@ import java.util.ArrayList;
  *
  */
 public class KDNode {
-	int level; //levels 0, 3, 6, ... are X
-			   //levels 1, 4, 7, ... are Y
-			   //levels 2, 5, 8, ... are Z
+	int level; //depth of the node, 0 for the root
+	int axis; //0 : x, 1 : y, 2 : z. level % 3 for the median tree, 
+			  //chosen per node by the SAH tree
 	
-	Bounds bounds; 
 	KDNode A, B; //two child nodes
-	SplitPlane splitPlane;
-	boolean isALeaf;
-	ArrayList<Triangle> leaf; //list used only if this is a leaf node
+	double split; //position of the split plane along axis
+	int[] leaf; //triangle indices into the Mesh, used only if this is a leaf node
 	
 	KDNode() {
-		bounds = null;
 		A = null;
 		B = null;
-		splitPlane = null;
 		leaf = null;
 	}
 }
@@ -1,10 +1,9 @@
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
 
 /**
  * Class KDTree is used to build and traverse a kd-tree
@@ -14,22 +13,60 @@ import java.util.Set;
  */
 public class KDTree {
 	
+	//tree builders, see KDTreeBuilder
+	static final int MEDIAN = 1; 
+	static final int SAH = 2; 
+	
 	private KDNode root;
+	private Bounds rootBounds;
 	private int treeDepth;
 	
+	//flattened tree, built from root after construction. See flatten()
+	private static final int LEAF = 3;
+	private int[] nodes;
+	private double[] splits;
+	private int[] leafTriangles; //triangle indices into mesh, for all leaves
+	private Mesh mesh;
+	private int noOfLeaves, noOfEmptyLeaves;
+	private LeafKernel vectorKernel; //null : leaves are tested one triangle at a time
+	
 	/**
-	 * Calls divide() which will create the kd-tree from given list
+	 * Creates the kd-tree for the triangles of mesh, using the SAH builder
 	 * 
-	 * @param list			list of Triangles created after parsing the obj file
+	 * @param mesh1			triangles of the model
 	 * @param rootBounds	x, y, z bounds of the model as a whole
 	 */
-	public void createTree(ArrayList<Triangle> list, Bounds rootBounds) {
-		if(list.size() == 0) return;
-		treeDepth = 0;
-		root = divide1(list, rootBounds, 0); //divide1 : median, divide2 : SAH
+	public void createTree(Mesh mesh1, Bounds rootBounds) {
+		createTree(mesh1, rootBounds, SAH);
+	}
+	
+	/**
+	 * Creates the kd-tree for the triangles of mesh, using either the median or the SAH builder.
+	 * Prints the build time and the peak heap usage during the build.
+	 * 
+	 * @param mesh1			triangles of the model
+	 * @param rootBounds1	x, y, z bounds of the model as a whole
+	 * @param builder		KDTree.MEDIAN or KDTree.SAH
+	 */
+	public void createTree(Mesh mesh1, Bounds rootBounds1, int builder) {
+		if(mesh1.noOfTriangles == 0) return;
+		mesh = mesh1;
+		rootBounds = rootBounds1;
+		
+		resetPeakHeapUsage();
+		long startTime = System.currentTimeMillis();
+		root = new KDTreeBuilder(mesh, builder).build(rootBounds);
+		flatten();
+		root = null; //only the flattened tree is used for traversal
+		long buildTime = System.currentTimeMillis() - startTime;
+		
 		System.out.print("Root ");
-		System.out.println(root.bounds);
+		System.out.println(rootBounds);
 		System.out.println("Tree depth: "+treeDepth);
+		System.out.println("Leaves: " + noOfLeaves + " (" + noOfEmptyLeaves + " empty), "+
+						   "triangles per non-empty leaf: " + 
+						   (double)leafTriangles.length/Math.max(1, noOfLeaves - noOfEmptyLeaves));
+		System.out.println("Tree built in " + buildTime + " ms, peak heap: " + getPeakHeapUsage()/(1024*1024) + " MB");
 	}
 	
 	/**
@@ -37,284 +74,562 @@ public class KDTree {
 	 * 
 	 * @param ray			Ray object for which need the nearest intersection
 	 * @param light			LightSource object 
-	 * @param transform 	Transformation for the Shape object
+	 * @param transform 	Transformation for the Shape object, null if the tree is in world space
 	 * @return				intersection point(if any)
 	 */
 	public Point traverseTree(Ray ray,  LightSource light, Transform transform) {
-		Ray transRay = transform.transformRay(ray);//inverse transform the ray
-		Point p = traverse(root, transRay, light);
+		if(nodes == null) return null;
+		Ray transRay = (transform != null) ? transform.transformRay(ray) : ray;//inverse transform the ray
 		
-		p = transform.transformPoint(p); 
-		return p;
+		double[] o = transRay.getOrigin(), d = transRay.getDirection();
+		double[] t = clipToRootBounds(o, d);
+		if(t == null) return null;
+		Hit hit = new Hit();
+		traverse(transRay, o, d, 0, t[0], t[1], hit);
+		if(!hit.found()) return null;
+		
+		return createHitPoint(ray, transRay, hit, light, transform);
 	}
 	
 	/**
-	 * It recursively searches the tree to find the intersection
-	 * @param node 		current kd-tree node to be searched
-	 * @param ray		Ray object
-	 * @param light		LightSource object(needed during shading calculations
-	 * 					when intersection is found)
+	 * Finds the nearest intersection for each ray of a packet, e.g. neighbouring camera rays.
+	 * If the rays start at the same point and their directions have the same signs, 
+	 * they are traced together by traversePacket(). Otherwise each is traced alone.
 	 * 
-	 * @return			Point object if nearest intersection found. 
-	 * 					Null if not.
+	 * @param packet		rays in world space
+	 * @param light			LightSource object 
+	 * @param transform 	Transformation for the Shape object, null if the tree is in world space
+	 * @return				intersection point for each ray, null where nothing was hit
 	 */
-	private Point traverse(KDNode node, Ray ray, LightSource light) {			
-		if(node.leaf != null) { //if node is a leaf
-			ArrayList<Point> pts = new ArrayList<Point>();
-			for(Triangle t : node.leaf) {
-				Point p = ray.intersectsTriangle(t, light);//, transform);
-				if(p != null) pts.add(p);
-				if(!t.traversed) {
-					t.traversed=true;
-					
-				}
-			}
-			double[] rayOrigin = ray.getOrigin();
-			Point origin = new Point(rayOrigin[0], rayOrigin[1], rayOrigin[2]);
-			Point p = origin.closestIntersection(pts);
-			return p;
-		}
-		
-		//continue if current node is not leaf node 	
-		
-		Point[] pBox = ray.intersectsBoundingBox(node, light);
+	public Point[] traversePacket(RayPacket packet, LightSource light, Transform transform) {
+		int n = packet.n;
+		Point[] points = new Point[n];
+		if(nodes == null) return points;
 		
-		Point p = null;
-		if(pBox != null) {
-			int i = node.level%3;
-			//store points as double arrays
-			double[] enter = {pBox[0].x, pBox[0].y, pBox[0].z},  
-					 exit  = {pBox[2].x, pBox[2].y, pBox[2].z};
+		Ray[] transRays = packet.transRays;
+		double[][] dir = packet.dir;
+		double[] tMin = packet.tMin, tMax = packet.tMax;
+		packet.resetHits();
+		double[] o = null;
+		boolean coherent = true;
+		for(int i = 0; i < n; i++) {
+			transRays[i] = (transform != null) ? transform.transformRay(packet.rays[i]) : packet.rays[i];
+			double[] origin = transRays[i].getOrigin(), d = transRays[i].getDirection();
+			dir[0][i] = d[0]; dir[1][i] = d[1]; dir[2][i] = d[2];
 			
-			if(pBox[1] == null) { //if ray does not intersect the splitPlane
-				double splitPlaneLoc = 0;
-				if(i == 0) splitPlaneLoc = node.splitPlane.xMin; 
-				else if(i == 1) splitPlaneLoc = node.splitPlane.yMin; 
-				else splitPlaneLoc = node.splitPlane.zMin; 
-	
-				if(enter[i] < splitPlaneLoc) {
-					p = traverse(node.A, ray, light);
-				} else {
-					p = traverse(node.B, ray, light);
-				}
-			} else {
-			double[] split = {pBox[1].x, pBox[1].y, pBox[1].z}; 
+			if(o == null) o = origin;
+			else if(o[0] != origin[0] || o[1] != origin[1] || o[2] != origin[2]) coherent = false;
+			for(int axis = 0; axis < 3; axis++) {
+				if((d[axis] <= 0) != (dir[axis][0] <= 0)) coherent = false;
+			}
 			
-			if(enter[i] <= split[i]) {
-				if(exit[i] < split[i]) {
-					p = traverse(node.A, ray, light); //A
-				} else {
-					if(exit[i] == split[i]) {
-						p = traverse(node.A, ray, light); //A or B
-					} else { // if exit.x > split.x
-						Point p1 = traverse(node.A, ray, light);
-						Point p2 = traverse(node.B, ray, light);
-						if(p1 == null || p2 == null) {
-							p = (p1 == null) ? p2 : p1;
-						}
-						
-						else if(p1 != null && p2 != null) {
-							double[] origin = ray.getOrigin();
-							Point rayOrigin = new Point(origin[0], origin[1], origin[2]);	
-							double dist1 = p1.distanceFrom(rayOrigin), dist2 = p2.distanceFrom(rayOrigin);	
-							p = (dist1 < dist2) ? p1 : p2;
-						}
-					}
-				}
-			} 
-			else { //enter.x > split.x
-				if(exit[i] > split[i]) { //B
-					p = traverse(node.B, ray, light);
-				} else {
-					Point p1 = traverse(node.B, ray, light);
-					Point p2 = traverse(node.A, ray, light);
-					if(p1 == null || p2 == null) {
-						p = (p1 == null) ? p2 : p1;
-					}
-					
-					else if(p1 != null && p2 != null) {
-						double[] origin = ray.getOrigin();
-						Point rayOrigin = new Point(origin[0], origin[1], origin[2]);	
-						double dist1 = p1.distanceFrom(rayOrigin), dist2 = p2.distanceFrom(rayOrigin);	
-						p = (dist1 < dist2) ? p1 : p2;
-					}
-				}
-			}			
+			double[] t = clipToRootBounds(origin, d);
+			if(t == null) { //missed, never active
+				tMin[i] = Double.POSITIVE_INFINITY; tMax[i] = Double.NEGATIVE_INFINITY;
+			} else {
+				tMin[i] = t[0]; tMax[i] = t[1];
+			}
 		}
 		
+		if(coherent) {
+			packet.origin = o;
+			traversePacket(packet);
+		} else {
+			for(int i = 0; i < n; i++) {
+				if(tMin[i] <= tMax[i]) traverse(transRays[i], transRays[i].getOrigin(), transRays[i].getDirection(), 
+												 0, tMin[i], tMax[i], packet.hits[i]);
+			}
 		}
-		return p;	
-	}	
+		
+		for(int i = 0; i < n; i++) {
+			Hit hit = packet.hits[i];
+			if(hit.found()) points[i] = createHitPoint(packet.rays[i], transRays[i], hit, light, transform);
+		}
+		return points;
+	}
 	
 	/**
-	 * It creates the kd-tree by recursively dividing the list along the median.
+	 * Shades only the closest hit, in world space like the shadow rays
 	 * 
-	 * @param list		ArrayList of remaining Triangle objects
-	 * @param bounds	x,y,z bounds of the list above
-	 * @param level		node level(determines the axis along which the list is split)
+	 * @param ray			ray in world space
+	 * @param transRay		the same ray in object space, used for the traversal
+	 */
+	private Point createHitPoint(Ray ray, Ray transRay, Hit hit, LightSource light, Transform transform) {
+		Point p = transRay.createHitPoint(mesh, hit);
+		if(transform != null) p = transform.transformPoint(p); 
+		ray.shade(p, mesh, hit.triangle, light);
+		return p;
+	}
+	
+	/**
+	 * Finds out if anything blocks the segment from origin to target, 
+	 * e.g. a shadow ray from a surface point to a point on the light.
+	 * Unlike traverseTree(), it stops at the first blocking triangle 
+	 * and ignores triangles beyond the target. Nothing is shaded.
 	 * 
-	 * @return			the parent node for list
-	 * 					(ultimately returns the root node after the tree is complete)
+	 * @param origin		start of the segment
+	 * @param target		end of the segment
+	 * @param transform 	Transformation for the Shape object, null if the tree is in world space
+	 * @return				true if a triangle lies between origin and target
 	 */
-	private KDNode divide1(ArrayList<Triangle> list, Bounds bounds, int level) {
-		if(treeDepth < level) treeDepth = level;
-		if(list.size() == 1) {//we've reached the triangle
-			KDNode leafNode = new KDNode();
-			leafNode.level = level; 
-			leafNode.leaf = new ArrayList<Triangle>(list); 
-			leafNode.bounds = bounds;
+	public boolean occluded(Point origin, Point target, Transform transform) {
+		if(nodes == null) return false;
 		
-			return leafNode;
-		} 
-		
-		int i = level % 3; //0 : x, 1 : y, 2 : z
+		//work in object space, so the hit distances compare with the target distance
+		Point o1 = origin, target1 = target;
+		if(transform != null) {
+			o1 = transform.inverseTransformPoint(origin); 
+			target1 = transform.inverseTransformPoint(target);
+		}
+		double distance = o1.distanceFrom(target1);
+		Ray ray = new Ray(o1.x, o1.y, o1.z, target1.x - o1.x, target1.y - o1.y, target1.z - o1.z);
 		
-		KDNode newNode = new KDNode();
-		newNode.level = level ;
+		double[] o = ray.getOrigin(), d = ray.getDirection();
+		double[] t = clipToRootBounds(o, d);
+		if(t == null || t[0] >= distance) return false;
+		return traverseAnyHit(ray, o, d, t[0], Math.min(t[1], distance), distance);
+	}
+	
+	/**
+	 * Same walk as traverse(), but returns as soon as any triangle is hit 
+	 * closer than maxDistance.
+	 * 
+	 * @param ray			Ray object
+	 * @param o				ray origin
+	 * @param d				ray direction
+	 * @param tMin			distance at which the ray enters the root
+	 * @param tMax			distance at which the ray leaves the root, or maxDistance
+	 * @param maxDistance	hits at or beyond this distance are ignored
+	 * 
+	 * @return				true if a hit was found
+	 */
+	private boolean traverseAnyHit(Ray ray, double[] o, double[] d, double tMin, double tMax, double maxDistance) {
+		int[] stackNode = new int[treeDepth + 1];
+		double[] stackMin = new double[treeDepth + 1], stackMax = new double[treeDepth + 1];
+		int top = 0;
 		
-		double median = 0; 
-		newNode.bounds = bounds; 
-		newNode.splitPlane = new SplitPlane();
-		ArrayList<Triangle> leftOfMedian = new ArrayList<Triangle>(), rightOfMedian = new ArrayList<Triangle>();
-		Bounds boundsA = null, boundsB = null;//new Bounds();
-		switch(i) {
-		case 0 : // X
-			//sort list by x
-			Collections.sort(list, new Comparator<Triangle>() {
-				@Override
-				public int compare(Triangle t1, Triangle t2) {
-					return Double.compare(t1.centroid.x, t2.centroid.x);
-				}				
-			});
+		Hit hit = new Hit();
+		int node = 0;
+		while(true) {
+			int info = nodes[2*node];
 			
-			//find median
-			if(list.size() % 2 != 0) { //for odd number of triangles
-				int mid = (list.size() - 1)/2;
-				median = list.get(mid).centroid.x;
+			while((info & LEAF) != LEAF) {
+				int axis = info;
+				double split = splits[node];
+				int childA = node + 1, childB = nodes[2*node + 1];
 				
-			} else {  //if even, take average of the two middle values
-				int mid = (list.size())/2;
-				median = (double)(list.get(mid - 1).centroid.x + list.get(mid).centroid.x)/2;  
+				boolean originBelow = o[axis] < split || (o[axis] == split && d[axis] <= 0);
+				int near = originBelow ? childA : childB, far = originBelow ? childB : childA;
 				
+				double tSplit = (split - o[axis])/d[axis];
+				if(!(tSplit > 0 && tSplit <= tMax)) { //also NaN, see traverse()
+					node = near;
+				} else if(tSplit < tMin) {
+					node = far;
+				} else {
+					stackNode[top] = far; stackMin[top] = tSplit; stackMax[top] = tMax;
+					top++;
+					node = near;
+					tMax = tSplit;
+				}
+				info = nodes[2*node];
 			}
 			
-			leftOfMedian = new ArrayList<Triangle>();
-			rightOfMedian = new ArrayList<Triangle>();
-			for(Triangle t : list) {
-				//if any vertex is on the left, add to list
-				if(t.p0.x <= median || t.p1.x <= median || t.p2.x <= median) {
-					leftOfMedian.add(t);
-				}
-				if(t.p0.x > median || t.p1.x > median || t.p2.x > median) {
-					rightOfMedian.add(t);
+			int offset = nodes[2*node + 1], count = info >>> 2;
+			if(vectorKernel != null) {
+				hit.t = maxDistance;
+				if(vectorKernel.intersect(ray, o, d, offset, count, hit, true)) return true;
+			} else {
+				for(int k = offset; k < offset + count; k++) {
+					hit.t = maxDistance; //only hits in front of the target count
+					if(ray.intersectsTriangle(mesh, leafTriangles[k], hit)) return true;
 				}
 			}
-			newNode.splitPlane.setXBounds(median, median);
-			newNode.splitPlane.setYBounds(bounds.yMin, bounds.yMax);
-			newNode.splitPlane.setZBounds(bounds.zMin, bounds.zMax);
-			newNode.splitPlane.normal = new double[]{1, 0, 0};
-			//divide bounds vertically at median
-			boundsA = new Bounds(bounds.xMin, bounds.yMin, bounds.zMin, median, bounds.yMax, bounds.zMax);
-			boundsB = new Bounds(median, bounds.yMin, bounds.zMin, bounds.xMax, bounds.yMax, bounds.zMax);
 			
-			break;
+			if(top == 0) return false;
+			top--;
+			node = stackNode[top]; tMin = stackMin[top]; tMax = stackMax[top];
+		}
+	}
+	
+	/**
+	 * It searches the flattened tree front to back, using a stack instead of recursion.
+	 * The ray is clipped to the interval [tMin, tMax] inside the current node,
+	 * so no bounding box tests are needed below the root. The near child is visited 
+	 * first and the far child is pushed on the stack. The search stops as soon as a hit 
+	 * lies inside the interval of the current leaf, since all nodes still on the stack 
+	 * lie behind it.
+	 * 
+	 * @param ray		Ray object
+	 * @param o			ray origin
+	 * @param d			ray direction
+	 * @param node		root of the subtree to search, 0 for the whole tree
+	 * @param tMin		distance at which the ray enters the node
+	 * @param tMax		distance at which the ray leaves the node
+	 * @param hit		receives the nearest hit, if it is closer than hit.t. 
+	 * 					Its triangle stays -1 if nothing was hit.
+	 */
+	private void traverse(Ray ray, double[] o, double[] d, int node, double tMin, double tMax, Hit hit) {
+		int[] stackNode = new int[treeDepth + 1];
+		double[] stackMin = new double[treeDepth + 1], stackMax = new double[treeDepth + 1];
+		int top = 0;
 		
-		case 1 : // Y
-			//sort list by y
-			Collections.sort(list, new Comparator<Triangle>() {
-				@Override
-				public int compare(Triangle t1, Triangle t2) {
-					return Double.compare(t1.centroid.y, t2.centroid.y);
-				}				
-			});
+		while(true) {
+			int info = nodes[2*node];
 			
-			//find median
-			if(list.size() % 2 != 0) { //for odd number of triangles
-				int mid = (list.size() - 1)/2;
-				median = list.get(mid).centroid.y;
+			//go down to the nearest leaf
+			while((info & LEAF) != LEAF) {
+				int axis = info;
+				double split = splits[node];
+				int childA = node + 1, childB = nodes[2*node + 1]; //A is below the split plane, B above
 				
-			} else {  //if even, take average of the two middle values
-				int mid = (list.size())/2;
-				median = (double)(list.get(mid - 1).centroid.y + list.get(mid).centroid.y)/2;  
+				//the child containing the ray origin is visited first
+				boolean originBelow = o[axis] < split || (o[axis] == split && d[axis] <= 0);
+				int near = originBelow ? childA : childB, far = originBelow ? childB : childA;
 				
-			}
-			leftOfMedian = new ArrayList<Triangle>();
-			rightOfMedian = new ArrayList<Triangle>();
-			for(Triangle t : list) {
-				//if any vertex is on the left, add to list
-				if(t.p0.y <= median || t.p1.y <= median || t.p2.y <= median) {
-					leftOfMedian.add(t);
-				}
-				if(t.p0.y > median || t.p1.y > median || t.p2.y > median) {
-					rightOfMedian.add(t);
+				double tSplit = (split - o[axis])/d[axis]; //infinite if the ray is parallel to the plane, NaN if in it
+				if(!(tSplit > 0 && tSplit <= tMax)) { //a ray in the plane never crosses it, only near
+					node = near;
+				} else if(tSplit < tMin) {
+					node = far;
+				} else {
+					stackNode[top] = far; stackMin[top] = tSplit; stackMax[top] = tMax;
+					top++;
+					node = near;
+					tMax = tSplit;
 				}
+				info = nodes[2*node];
 			}
-			newNode.splitPlane.setXBounds(newNode.bounds.xMin, newNode.bounds.xMax);
-			newNode.splitPlane.setYBounds(median, median);
-			newNode.splitPlane.setZBounds(newNode.bounds.zMin, newNode.bounds.zMax);
-			newNode.splitPlane.normal = new double[]{0, 1, 0};
-			
-			boundsA = new Bounds(bounds.xMin, bounds.yMin, bounds.zMin, bounds.xMax, median, bounds.zMax);
-			boundsB = new Bounds(bounds.xMin, median, bounds.zMin, bounds.xMax, bounds.yMax, bounds.zMax);
 			
-			break;
+			int offset = nodes[2*node + 1], count = info >>> 2;
+			if(vectorKernel != null) {
+				vectorKernel.intersect(ray, o, d, offset, count, hit, false);
+			} else {
+				for(int k = offset; k < offset + count; k++) {
+					ray.intersectsTriangle(mesh, leafTriangles[k], hit);
+				}
+			}
 			
-		case 2 : // Z
-			//sort list by z
-			Collections.sort(list, new Comparator<Triangle>() {
-				@Override
-				public int compare(Triangle t1, Triangle t2) {
-					return Double.compare(t1.centroid.z, t2.centroid.z);
-				}				
-			});
+			//a hit inside this leaf cannot be hidden by any node behind it
+			if(hit.t <= tMax || top == 0) break;
 			
-			//find median
-			if(list.size() % 2 != 0) { //for odd number of triangles
-				int mid = (list.size() - 1)/2;
-				median = list.get(mid).centroid.z;
+			top--;
+			node = stackNode[top]; tMin = stackMin[top]; tMax = stackMax[top];
+			if(hit.t <= tMin) break;
+		}
+	}
+	
+	/**
+	 * Same walk as traverse(), for a packet of rays with a common origin and the same
+	 * direction signs, so that they all see the children of a node in the same order.
+	 * Each ray keeps its own interval. A node is visited once for all rays whose interval 
+	 * overlaps it, and a leaf tests each of its triangles against all of them.
+	 * A ray is done when it has a hit inside its interval of the current leaf.
+	 * When only one ray is left in a node, the node is searched by traverse() for that ray.
+	 * Each ray visits the same leaves in the same order as it would on its own.
+	 * 
+	 * The distance to a split plane only depends on the direction of a ray along the split axis,
+	 * and grows or shrinks with it. So the rays with the smallest and largest direction along
+	 * the axis give the range of distances of the whole packet. If that range lies beyond
+	 * all intervals, or before all of them, the packet goes to one child without looking 
+	 * at each ray.
+	 * 
+	 * @param packet	rays in object space with their intervals in the root, 
+	 * 					empty(tMin > tMax) for rays that miss it. Receives the nearest hits.
+	 */
+	private void traversePacket(RayPacket packet) {
+		int n = packet.n, capacity = packet.getCapacity();
+		Ray[] rays = packet.transRays;
+		Hit[] hits = packet.hits;
+		double[] o = packet.origin, tMin = packet.tMin, tMax = packet.tMax, tSplit = packet.tSplit;
+		boolean[] done = packet.done, inLeaf = packet.inLeaf;
+		packet.ensureStack(treeDepth);
+		int[] stackNode = packet.stackNode;
+		double[] stackMin = packet.stackMin, stackMax = packet.stackMax;
+		int top = 0;
+		
+		//rays that are done, or do not pass through the node, have an empty interval
+		int active = 0;
+		double lowestTMin = Double.POSITIVE_INFINITY, highestTMax = Double.NEGATIVE_INFINITY; //of the active rays
+		for(int i = 0; i < n; i++) {
+			done[i] = false;
+			if(tMin[i] > tMax[i]) continue;
+			active++;
+			if(tMin[i] < lowestTMin) lowestTMin = tMin[i];
+			if(tMax[i] > highestTMax) highestTMax = tMax[i];
+		}
+		
+		//smallest and largest direction of all rays along each axis, 0 if any is 0
+		double[] dirMin = new double[3], dirMax = new double[3];
+		for(int axis = 0; axis < 3; axis++) {
+			double[] d = packet.dir[axis];
+			double min = d[0], max = d[0];
+			for(int i = 1; i < n; i++) {
+				if(d[i] < min) min = d[i];
+				if(d[i] > max) max = d[i];
+			}
+			if(min == 0 || max == 0) min = max = 0;
+			dirMin[axis] = min; dirMax[axis] = max;
+		}
+		
+		int node = 0;
+		while(true) {
+			int info = nodes[2*node];
+			if(active == 1) { 
+				//the packet has diverged, continue with this ray alone
+				int i = 0;
+				while(tMin[i] > tMax[i]) i++;
+				traverse(rays[i], o, rays[i].getDirection(), node, tMin[i], tMax[i], hits[i]);
+				if(hits[i].t <= tMax[i]) done[i] = true;
+			} else if(active > 1 && (info & LEAF) != LEAF) {
+				int axis = info;
+				double split = splits[node];
+				int childA = node + 1, childB = nodes[2*node + 1];
+				double[] d = packet.dir[axis];
 				
-			} else {  //if even, take average of the two middle values
-				int mid = (list.size())/2;
-				median = (double)(list.get(mid - 1).centroid.z + list.get(mid).centroid.z)/2;  
+				boolean originBelow = o[axis] < split || (o[axis] == split && d[0] <= 0);
+				int near = originBelow ? childA : childB, far = originBelow ? childB : childA;
 				
-			}
-			leftOfMedian = new ArrayList<Triangle>();
-			rightOfMedian = new ArrayList<Triangle>();
-			for(Triangle t : list) {
-				//if any vertex is on the left, add to list
-				if(t.p0.z <= median || t.p1.z <= median || t.p2.z <= median) {
-					leftOfMedian.add(t);
+				if(dirMin[axis] != 0) {
+					double t0 = (split - o[axis])/dirMin[axis], t1 = (split - o[axis])/dirMax[axis];
+					double tSplitMin = Math.min(t0, t1), tSplitMax = Math.max(t0, t1);
+					if(tSplitMin > highestTMax || tSplitMax <= 0) { //only near for all rays
+						node = near;
+						continue;
+					}
+					if(tSplitMax < lowestTMin && tSplitMin > 0) { //only far for all rays
+						node = far;
+						continue;
+					}
+				}
+				
+				int noOfNear = 0, noOfFar = 0;
+				for(int i = 0; i < n; i++) {
+					if(tMin[i] > tMax[i]) continue;
+					double t = (split - o[axis])/d[i];
+					tSplit[i] = t;
+					if(!(t > 0 && t <= tMax[i])) noOfNear++; //also NaN, as in traverse()
+					else if(t < tMin[i]) noOfFar++;
+					else { noOfNear++; noOfFar++; }
+				}
+				
+				if(noOfFar == 0) {
+					node = near;
+				} else if(noOfNear == 0) {
+					node = far;
+				} else {
+					//rays enter near, far or both. The far intervals go on the stack
+					int base = top*capacity;
+					lowestTMin = Double.POSITIVE_INFINITY; highestTMax = Double.NEGATIVE_INFINITY;
+					for(int i = 0; i < n; i++) {
+						double t = tSplit[i];
+						if(tMin[i] > tMax[i]) {
+							stackMin[base + i] = Double.POSITIVE_INFINITY; stackMax[base + i] = Double.NEGATIVE_INFINITY;
+							continue;
+						} else if(!(t > 0 && t <= tMax[i])) {
+							stackMin[base + i] = Double.POSITIVE_INFINITY; stackMax[base + i] = Double.NEGATIVE_INFINITY;
+						} else if(t < tMin[i]) {
+							stackMin[base + i] = tMin[i]; stackMax[base + i] = tMax[i];
+							tMin[i] = Double.POSITIVE_INFINITY; tMax[i] = Double.NEGATIVE_INFINITY;
+							continue;
+						} else {
+							stackMin[base + i] = t; stackMax[base + i] = tMax[i];
+							tMax[i] = t;
+						}
+						if(tMin[i] < lowestTMin) lowestTMin = tMin[i];
+						if(tMax[i] > highestTMax) highestTMax = tMax[i];
+					}
+					stackNode[top] = far;
+					top++;
+					node = near;
+					active = noOfNear;
+				}
+				continue;
+			} else if(active > 1) {
+				for(int i = 0; i < n; i++) {
+					inLeaf[i] = tMin[i] <= tMax[i];
 				}
-				if(t.p0.z > median || t.p1.z > median || t.p2.z > median) {
-					rightOfMedian.add(t);
+				int offset = nodes[2*node + 1], count = info >>> 2;
+				for(int k = offset; k < offset + count; k++) {
+					Ray.intersectsTriangle(rays, inLeaf, n, mesh, leafTriangles[k], hits);
+				}
+				for(int i = 0; i < n; i++) {
+					if(inLeaf[i] && hits[i].t <= tMax[i]) done[i] = true;
 				}
 			}
-			newNode.splitPlane.setXBounds(bounds.xMin, bounds.xMax);
-			newNode.splitPlane.setYBounds(bounds.yMin, bounds.yMax);
-			newNode.splitPlane.setZBounds(median, median);
-			newNode.splitPlane.normal = new double[]{0, 0, 1};
-			
-			boundsA = new Bounds(bounds.xMin, bounds.yMin, bounds.zMin, bounds.xMax, bounds.yMax, median);
-			boundsB = new Bounds(bounds.xMin, bounds.yMin, median, bounds.xMax, bounds.yMax, bounds.zMax);
 			
-			break;
+			if(top == 0) return;
+			top--;
+			node = stackNode[top];
+			int base = top*capacity;
+			active = 0;
+			lowestTMin = Double.POSITIVE_INFINITY; highestTMax = Double.NEGATIVE_INFINITY;
+			for(int i = 0; i < n; i++) {
+				tMin[i] = stackMin[base + i]; tMax[i] = stackMax[base + i];
+				if(tMin[i] > tMax[i]) continue;
+				if(done[i] || hits[i].t <= tMin[i]) {
+					done[i] = true;
+					tMin[i] = Double.POSITIVE_INFINITY; tMax[i] = Double.NEGATIVE_INFINITY;
+				} else {
+					active++;
+					if(tMin[i] < lowestTMin) lowestTMin = tMin[i];
+					if(tMax[i] > highestTMax) highestTMax = tMax[i];
+				}
+			}
 		}
+	}
+	
+	/**
+	 * @return	estimated bytes of the flattened tree, including the vector kernel if it is used
+	 */
+	long getMemorySize() {
+		if(nodes == null) return 0;
+		return 4L*nodes.length + 8L*splits.length + 4L*leafTriangles.length +
+			   ((vectorKernel != null) ? vectorKernel.getMemorySize() : 0);
+	}
+	
+	/**
+	 * Tests the leaves of the tree with VectorLeafKernel, several triangles at a time.
+	 * The kernel is loaded by name, as it is only compiled(from src-vector) and can only run
+	 * with the jdk.incubator.vector module. If it is not available, the scalar kernel is kept.
+	 * 
+	 * @return	true if the vector kernel is used
+	 */
+	public boolean useVectorKernel() {
+		if(nodes == null) return false;
+		try {
+			Class<?> kernel = Class.forName("VectorLeafKernel");
+			vectorKernel = (LeafKernel)kernel.getConstructor(Mesh.class, int[].class).newInstance(mesh, leafTriangles);
+			System.out.println("Vector leaf kernel: " + vectorKernel.getLanes() + " triangles per operation");
+			return true;
+		} catch (ClassNotFoundException e) {
+			System.out.println("Vector leaf kernel not built(see src-vector), using the scalar leaf kernel");
+		} catch (ReflectiveOperationException | LinkageError e) { //module not added, e.g. NoClassDefFoundError
+			System.out.println("Vector API not available(run with --add-modules jdk.incubator.vector), using the scalar leaf kernel");
+		}
+		vectorKernel = null;
+		return false;
+	}
+	
+	/**
+	 * Finds the distances at which the ray enters and leaves the root bounds.
+	 * 
+	 * @return	{tMin, tMax}, or null if the ray misses the bounds
+	 */
+	private double[] clipToRootBounds(double[] o, double[] d) {
+		double[] min = {rootBounds.xMin, rootBounds.yMin, rootBounds.zMin},
+				 max = {rootBounds.xMax, rootBounds.yMax, rootBounds.zMax};
+		double tMin = 0, tMax = Double.MAX_VALUE;
+		for(int i = 0; i < 3; i++) {
+			double t0 = (min[i] - o[i])/d[i], t1 = (max[i] - o[i])/d[i];
+			if(t0 > t1) { double temp = t0; t0 = t1; t1 = temp; }
+			if(t0 > tMin) tMin = t0;
+			if(t1 < tMax) tMax = t1;
+			if(tMin > tMax) return null;
+		}
+		return new double[]{tMin, tMax};
+	}
+	
+	/**
+	 * Packs the tree into primitive arrays, in depth first order.
+	 * For node k: 
+	 * 		nodes[2k]     : split axis, or LEAF | (no. of triangles << 2) for a leaf
+	 * 		nodes[2k + 1] : index of child B(child A is always k + 1), 
+	 * 						or offset into leafTriangles for a leaf
+	 * 		splits[k]     : position of the split plane along the axis
+	 */
+	private void flatten() {
+		int[] counts = new int[2]; //no. of nodes, no. of leaf references
+		treeDepth = 0;
+		noOfLeaves = 0; noOfEmptyLeaves = 0;
+		countNodes(root, counts);
+		nodes = new int[2*counts[0]];
+		splits = new double[counts[0]];
+		leafTriangles = new int[counts[1]];
 		
-		
-		if(leftOfMedian.size() == list.size() || rightOfMedian.size() == list.size()) {
-			newNode.leaf = new ArrayList<Triangle>();
-			for(Triangle t : list) {
-				newNode.leaf.add(t);
+		counts[0] = 0; counts[1] = 0;
+		addNode(root, counts);
+		System.out.println("Flattened tree: " + splits.length + " nodes, " + leafTriangles.length + " leaf references");
+	}
+	
+	private void countNodes(KDNode node, int[] counts) {
+		counts[0]++;
+		if(treeDepth < node.level) treeDepth = node.level;
+		if(node.leaf != null) {
+			counts[1] += node.leaf.length;
+			noOfLeaves++;
+			if(node.leaf.length == 0) noOfEmptyLeaves++;
+			return;
+		}
+		countNodes(node.A, counts);
+		countNodes(node.B, counts);
+	}
+	
+	private void addNode(KDNode node, int[] counts) {
+		int k = counts[0]++;
+		if(node.leaf != null) {
+			nodes[2*k] = LEAF | (node.leaf.length << 2);
+			nodes[2*k + 1] = counts[1];
+			for(int t : node.leaf) {
+				leafTriangles[counts[1]++] = t;
 			}
-			return newNode;
-		} 
-			
-		newNode.A = divide1(leftOfMedian, boundsA, level + 1);
-		newNode.B = divide1(rightOfMedian, boundsB, level + 1);
+			return;
+		}
+		nodes[2*k] = node.axis;
+		splits[k] = node.split;
+		addNode(node.A, counts);
+		nodes[2*k + 1] = counts[0];
+		addNode(node.B, counts);
+	}
 	
-		return newNode;
-		
+	/**
+	 * Writes the flattened tree to the scene cache.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		boolean empty = (nodes == null);
+		out.writeBoolean(empty);
+		if(empty) return;
+		out.writeDouble(rootBounds.xMin); out.writeDouble(rootBounds.yMin); out.writeDouble(rootBounds.zMin);
+		out.writeDouble(rootBounds.xMax); out.writeDouble(rootBounds.yMax); out.writeDouble(rootBounds.zMax);
+		out.writeInt(treeDepth);
+		SceneCache.writeInts(out, nodes);
+		SceneCache.writeDoubles(out, splits);
+		SceneCache.writeInts(out, leafTriangles);
 	}
 	
-
+	/**
+	 * Reads a tree written by write(). 
+	 * 
+	 * @param in		scene cache, positioned at the tree
+	 * @param mesh1		mesh the tree was built for
+	 */
+	static KDTree read(ByteBuffer in, Mesh mesh1) {
+		KDTree tree = new KDTree();
+		tree.mesh = mesh1;
+		if(in.get() != 0) return tree; //no triangles
+		tree.rootBounds = new Bounds(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+		tree.treeDepth = in.getInt();
+		tree.nodes = SceneCache.readInts(in);
+		tree.splits = SceneCache.readDoubles(in);
+		tree.leafTriangles = SceneCache.readInts(in);
+		return tree;
+	}
+	
+	private static void resetPeakHeapUsage() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+	
+	/**
+	 * @return	sum of the peak usage of all heap pools since resetPeakHeapUsage(),
+	 * 			an upper bound since the pools may peak at different times
+	 */
+	private static long getPeakHeapUsage() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
 }
@@ -0,0 +1,338 @@
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class KDTreeBuilder creates the kd-tree nodes for the triangles of a Mesh,
+ * using either median splits or the surface area heuristic(SAH).
+ *
+ * Triangles are sorted once along each axis before the build starts. Every node
+ * keeps its triangles in three index arrays, one per axis, that are already in
+ * sorted order, and passes them on to its children with a stable partition.
+ * So no node sorts anything and the whole build is O(n log n).
+ * Subtrees with many triangles are built concurrently on the ForkJoinPool.
+ *
+ * @author Kirti M D
+ *
+ */
+public class KDTreeBuilder {
+
+	static final int PARALLEL_THRESHOLD = 4096; //smaller subtrees are built on the current thread
+
+	//SAH cost constants
+	private static final double COST_TRAVERSAL = 1, //cost of visiting one inner node
+								COST_INTERSECTION = 1.5, //cost of one ray-triangle test
+								EMPTY_BONUS = 0.2; //cost reduction for splits that cut off empty space
+
+	//SAH events along an axis. Events at the same position are ordered END, PLANAR, START.
+	//Event id 2t is the start(or planar) event of triangle t, 2t + 1 is its end event.
+	private static final int END = 0, PLANAR = 1, START = 2;
+
+	private int builder; //KDTree.MEDIAN or KDTree.SAH
+	private int noOfTriangles;
+	private double[] bbMin, bbMax; //bounding box of each triangle, 3 per triangle
+	private double[] centroid; //3 per triangle, used by the median builder
+	private int maxDepth; //SAH tree stops splitting below this level
+
+	/**
+	 * @param mesh			triangles to build the tree for
+	 * @param builder1		KDTree.MEDIAN or KDTree.SAH
+	 */
+	KDTreeBuilder(Mesh mesh, int builder1) {
+		builder = builder1;
+		noOfTriangles = mesh.noOfTriangles;
+		bbMin = new double[3*noOfTriangles];
+		bbMax = new double[3*noOfTriangles];
+		centroid = new double[3*noOfTriangles];
+
+		double[] pos = mesh.positions;
+		for(int t = 0; t < noOfTriangles; t++) {
+			int i0 = 3*mesh.vertexIndices[3*t], i1 = 3*mesh.vertexIndices[3*t + 1], i2 = 3*mesh.vertexIndices[3*t + 2];
+			for(int k = 0; k < 3; k++) {
+				bbMin[3*t + k] = Math.min(pos[i0 + k], Math.min(pos[i1 + k], pos[i2 + k]));
+				bbMax[3*t + k] = Math.max(pos[i0 + k], Math.max(pos[i1 + k], pos[i2 + k]));
+				centroid[3*t + k] = (pos[i0 + k] + pos[i1 + k] + pos[i2 + k])/3;
+			}
+		}
+		maxDepth = (int)Math.round(8 + 1.3*Math.log(noOfTriangles)/Math.log(2));
+	}
+
+	/**
+	 * Sorts the triangles(or SAH events) along each axis and builds the tree.
+	 *
+	 * @param rootBounds	x, y, z bounds of the mesh
+	 * @return				root node
+	 */
+	public KDNode build(Bounds rootBounds) {
+		int[][] lists = new int[3][];
+		for(int k = 0; k < 3; k++) {
+			if(builder == KDTree.SAH) {
+				int noOfEvents = 0;
+				for(int t = 0; t < noOfTriangles; t++) {
+					noOfEvents += (bbMin[3*t + k] == bbMax[3*t + k]) ? 1 : 2; //planar triangles have one event
+				}
+				lists[k] = new int[noOfEvents];
+				int e = 0;
+				for(int t = 0; t < noOfTriangles; t++) {
+					lists[k][e++] = 2*t;
+					if(bbMin[3*t + k] != bbMax[3*t + k]) lists[k][e++] = 2*t + 1;
+				}
+			} else {
+				lists[k] = new int[noOfTriangles];
+				for(int t = 0; t < noOfTriangles; t++) {
+					lists[k][t] = t;
+				}
+			}
+			sort(lists[k], k);
+		}
+
+		double[] bounds = {rootBounds.xMin, rootBounds.yMin, rootBounds.zMin, rootBounds.xMax, rootBounds.yMax, rootBounds.zMax};
+		return new NodeTask(lists, noOfTriangles, bounds, 0).invoke();
+	}
+
+	/**
+	 * Builds one node and, recursively, its children.
+	 */
+	private class NodeTask extends RecursiveTask<KDNode> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int[][] lists; //triangle ids(median) or event ids(SAH), sorted along each axis
+		private int n; //no. of triangles in this node
+		private double[] bounds; //xMin, yMin, zMin, xMax, yMax, zMax
+		private int level;
+
+		NodeTask(int[][] lists1, int n1, double[] bounds1, int level1) {
+			lists = lists1;
+			n = n1;
+			bounds = bounds1;
+			level = level1;
+		}
+
+		@Override
+		protected KDNode compute() {
+			KDNode node = new KDNode();
+			node.level = level;
+
+			//find the split plane, or make a leaf
+			int axis;
+			double split;
+			boolean planarLeft = false;
+			if(builder == KDTree.SAH) {
+				double[] best = (level < maxDepth) ? findSAHSplit() : null;
+				if(best == null || best[0] >= COST_INTERSECTION*n) { //cheaper to test all triangles
+					node.axis = level % 3;
+					node.leaf = triangleIds(lists[0]);
+					Arrays.sort(node.leaf);
+					return node;
+				}
+				axis = (int)best[1];
+				split = best[2];
+				planarLeft = best[3] == 1;
+			} else {
+				if(n == 1) {//we've reached the triangle
+					node.axis = level % 3;
+					node.leaf = lists[0].clone();
+					return node;
+				}
+				axis = level % 3;
+				split = findMedian(lists[axis], axis);
+			}
+			node.axis = axis;
+			node.split = split;
+
+			//stable partition of the sorted lists
+			int[][] left = new int[3][], right = new int[3][];
+			int nLeft = 0, nRight = 0;
+			for(int k = 0; k < 3; k++) {
+				int[] list = lists[k];
+				int[] l = new int[list.length], r = new int[list.length];
+				int noOfLeft = 0, noOfRight = 0;
+				for(int id : list) {
+					int t = (builder == KDTree.SAH) ? id >> 1 : id;
+					int side = classify(t, axis, split, planarLeft);
+					if(side != 1) l[noOfLeft++] = id;
+					if(side != 0) r[noOfRight++] = id;
+					if(k == 0 && (builder != KDTree.SAH || (id & 1) == 0)) { //count each triangle once
+						if(side != 1) nLeft++;
+						if(side != 0) nRight++;
+					}
+				}
+				left[k] = Arrays.copyOf(l, noOfLeft);
+				right[k] = Arrays.copyOf(r, noOfRight);
+			}
+
+			if(builder == KDTree.MEDIAN && (nLeft == n || nRight == n)) {
+				node.leaf = lists[axis].clone();
+				return node;
+			}
+
+			double[] boundsA = bounds.clone(), boundsB = bounds.clone();
+			boundsA[3 + axis] = split;
+			boundsB[axis] = split;
+
+			NodeTask taskA = new NodeTask(left, nLeft, boundsA, level + 1);
+			NodeTask taskB = new NodeTask(right, nRight, boundsB, level + 1);
+			if(n > PARALLEL_THRESHOLD) {
+				taskA.fork();
+				node.B = taskB.compute();
+				node.A = taskA.join();
+			} else {
+				node.A = taskA.compute();
+				node.B = taskB.compute();
+			}
+			return node;
+		}
+
+		/**
+		 * Finds the cheapest split plane for this node by sweeping over the sorted
+		 * start, end and planar events along each axis.
+		 *
+		 * @return		{cost, axis, position, 1 if planar triangles go left else 0}
+		 * 				null if the node cannot be split
+		 */
+		private double[] findSAHSplit() {
+			if(n <= 1) return null;
+
+			double[] size = {bounds[3] - bounds[0], bounds[4] - bounds[1], bounds[5] - bounds[2]};
+			double area = 2*(size[0]*size[1] + size[1]*size[2] + size[2]*size[0]);
+			if(area <= 0) return null;
+
+			double[] best = null;
+			for(int i = 0; i < 3; i++) {
+				int[] events = lists[i];
+				double voxelMin = bounds[i], voxelMax = bounds[3 + i];
+
+				//sides perpendicular to axis i
+				int j = (i + 1) % 3, k = (i + 2) % 3;
+				double capArea = 2*size[j]*size[k], sideLength = 2*(size[j] + size[k]);
+
+				int nLeft = 0, nPlanar = 0, nRight = n;
+				int e = 0;
+				while(e < events.length) {
+					double position = eventPosition(events[e], i);
+					int pEnd = 0, pPlanar = 0, pStart = 0;
+					while(e < events.length && eventPosition(events[e], i) == position && eventType(events[e], i) == END) { pEnd++; e++; }
+					while(e < events.length && eventPosition(events[e], i) == position && eventType(events[e], i) == PLANAR) { pPlanar++; e++; }
+					while(e < events.length && eventPosition(events[e], i) == position && eventType(events[e], i) == START) { pStart++; e++; }
+
+					nPlanar = pPlanar;
+					nRight -= pPlanar + pEnd;
+
+					//planes on the node boundary do not divide anything
+					if(position > voxelMin && position < voxelMax) {
+						double areaLeft = capArea + sideLength*(position - voxelMin);
+						double areaRight = capArea + sideLength*(voxelMax - position);
+						double costLeft = sahCost(areaLeft/area, areaRight/area, nLeft + nPlanar, nRight); //planar triangles go left
+						double costRight = sahCost(areaLeft/area, areaRight/area, nLeft, nRight + nPlanar);
+						double cost = Math.min(costLeft, costRight);
+						if(best == null || cost < best[0]) {
+							best = new double[]{cost, i, position, costLeft <= costRight ? 1 : 0};
+						}
+					}
+
+					nLeft += pStart + pPlanar;
+					nPlanar = 0;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Median of the triangle centroids along the axis.
+		 * For an even number of triangles, the average of the two middle values.
+		 */
+		private double findMedian(int[] sorted, int axis) {
+			if(sorted.length % 2 != 0) { //for odd number of triangles
+				return centroid[3*sorted[(sorted.length - 1)/2] + axis];
+			}
+			int mid = sorted.length/2;
+			return (centroid[3*sorted[mid - 1] + axis] + centroid[3*sorted[mid] + axis])/2;
+		}
+	}
+
+	/**
+	 * Finds on which side of the split plane triangle t lies.
+	 * The median builder puts a triangle on the left if any vertex is at or below the plane.
+	 * The SAH builder only keeps triangles lying in the plane on both sides when planarLeft says so.
+	 *
+	 * @return		0 : left, 1 : right, 2 : both
+	 */
+	private int classify(int t, int axis, double split, boolean planarLeft) {
+		double lo = bbMin[3*t + axis], hi = bbMax[3*t + axis];
+		if(builder == KDTree.SAH && lo == split && hi == split) { //triangle lies in the split plane
+			return planarLeft ? 0 : 1;
+		}
+		boolean left = (builder == KDTree.SAH) ? lo < split : lo <= split;
+		boolean right = hi > split;
+		if(left && right) return 2;
+		return left ? 0 : 1;
+	}
+
+	/**
+	 * @return	the triangle ids of the start or planar events in list, i.e. each triangle once
+	 */
+	private int[] triangleIds(int[] events) {
+		int count = 0;
+		for(int e : events) {
+			if((e & 1) == 0) count++;
+		}
+		int[] ids = new int[count];
+		count = 0;
+		for(int e : events) {
+			if((e & 1) == 0) ids[count++] = e >> 1;
+		}
+		return ids;
+	}
+
+	/**
+	 * Expected cost of a split, given the probabilities of a ray hitting each child
+	 * and the number of triangles in each child. Splits that leave one side empty are
+	 * made cheaper, so that empty space is cut off early.
+	 */
+	private double sahCost(double probabilityLeft, double probabilityRight, int nLeft, int nRight) {
+		double cost = COST_TRAVERSAL + COST_INTERSECTION*(probabilityLeft*nLeft + probabilityRight*nRight);
+		if(nLeft == 0 || nRight == 0) cost *= (1 - EMPTY_BONUS);
+		return cost;
+	}
+
+	private double eventPosition(int e, int axis) {
+		int t = e >> 1;
+		return ((e & 1) == 1) ? bbMax[3*t + axis] : bbMin[3*t + axis];
+	}
+
+	private int eventType(int e, int axis) {
+		if((e & 1) == 1) return END;
+		int t = e >> 1;
+		return (bbMin[3*t + axis] == bbMax[3*t + axis]) ? PLANAR : START;
+	}
+
+	/**
+	 * Stable merge sort of triangle ids by centroid(median),
+	 * or of event ids by position and type(SAH), along the axis.
+	 */
+	private void sort(int[] ids, int axis) {
+		int[] from = ids, to = new int[ids.length];
+		for(int width = 1; width < ids.length; width *= 2) {
+			for(int lo = 0; lo < ids.length; lo += 2*width) {
+				int mid = Math.min(lo + width, ids.length), hi = Math.min(lo + 2*width, ids.length);
+				int a = lo, b = mid, c = lo;
+				while(a < mid && b < hi) {
+					to[c++] = (compare(from[b], from[a], axis) < 0) ? from[b++] : from[a++];
+				}
+				while(a < mid) to[c++] = from[a++];
+				while(b < hi) to[c++] = from[b++];
+			}
+			int[] temp = from; from = to; to = temp;
+		}
+		if(from != ids) System.arraycopy(from, 0, ids, 0, ids.length);
+	}
+
+	private int compare(int id1, int id2, int axis) {
+		if(builder != KDTree.SAH) {
+			return Double.compare(centroid[3*id1 + axis], centroid[3*id2 + axis]);
+		}
+		double p1 = eventPosition(id1, axis), p2 = eventPosition(id2, axis);
+		if(p1 != p2) return Double.compare(p1, p2);
+		return eventType(id1, axis) - eventType(id2, axis);
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Interface LeafKernel tests a ray against the triangles of a kd-tree leaf, in place of
+ * the one triangle at a time loop of KDTree. See VectorLeafKernel, which is built from
+ * the separate src-vector source root, and KDTree.useVectorKernel().
+ *
+ * @author Kirti M D
+ *
+ */
+public interface LeafKernel {
+
+	/**
+	 * Tests the ray against leafTriangles[offset] to leafTriangles[offset + count - 1]
+	 *
+	 * @param ray		Ray object
+	 * @param o			ray origin
+	 * @param d			ray direction
+	 * @param hit		closest hit so far, updated if a triangle is closer
+	 * @param anyHit	if true, stops at the first triangle closer than hit.t and keeps hit.t,
+	 * 					as needed by KDTree.traverseAnyHit()
+	 *
+	 * @return			true if hit was updated
+	 */
+	boolean intersect(Ray ray, double[] o, double[] d, int offset, int count, Hit hit, boolean anyHit);
+
+	/**
+	 * @return	no. of triangles tested per operation
+	 */
+	int getLanes();
+
+	/**
+	 * @return	bytes of the copies of the triangles kept by the kernel
+	 */
+	long getMemorySize();
+}
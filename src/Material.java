@@ -1,4 +1,3 @@
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 
@@ -10,6 +9,8 @@ import java.util.ArrayList;
  *
  */
 public class Material {
+	static final Material DEFAULT = new Material(); //shared by triangles without a material
+	
 	String name;
 	private int illum; //shading model type
 	private double[] ka, //specular coefficient (individual values for R, G and B)
@@ -30,17 +31,13 @@ public class Material {
 	
 	
 	
-	private double[] ambientColor, diffuseColor, specularColor; //used if no texture provided
-	
 	//texture
-	private BufferedImage ambientTexImage, diffuseTexImage, specularTexImage, bumpImage; //png files
+	private TextureImage ambientTex, diffuseTex, specularTex; //texels of the png files
+	private BufferedImage bumpImage;
 	
 	//default color and coefficient values
 	Material() {
 		name = "default";
-		ambientColor = new double[]{0.9d, 0.9d, 0.9d};
-		specularColor = new double[]{0.8d, 0.8d, 0.7d};
-		diffuseColor = new double[]{0.80d, 0.8d, 0.8d};
 		ka = new double[]{0.7d, 0.7d, 0.7d};
 		ks = new double[]{0.2, 0.2, 0.2};
 		kd = new double[]{0.45d, 0.45d, 0.45d};
@@ -62,14 +59,26 @@ public class Material {
 		ks = ks1;
 		ke = ke1;
 		tf = tf1;
-		ambientTexImage = ambiTex;
-		diffuseTexImage = diffTex;
-		specularTexImage = specTex;
+		ambientTex = (ambiTex != null) ? new TextureImage(ambiTex) : null;
+		diffuseTex = (diffTex != null) ? new TextureImage(diffTex) : null;
+		specularTex = (specTex != null) ? new TextureImage(specTex) : null;
 		bumpImage = bump;
 		
 	}
 	
 	
+	/**
+	 * @return	estimated bytes of the textures
+	 */
+	long getMemorySize() {
+		long size = 0;
+		for(TextureImage t : new TextureImage[]{ambientTex, diffuseTex, specularTex}) {
+			if(t != null) size += t.getMemorySize();
+		}
+		if(bumpImage != null) size += 4L*bumpImage.getWidth()*bumpImage.getHeight();
+		return size;
+	}
+	
 	/**
 	 *  Calculate color using Phong shading for given point
 	 *  
@@ -83,6 +92,11 @@ public class Material {
 	public double[] getColorForPoint(Point p, double[] bumpNormal, double[] eye, LightSource light) {
 		double[] color = {0, 0, 0};//initialize
 		
+		//the texture colors do not depend on the light sample
+		double[] ambientTexel = new double[3], diffuseTexel = new double[3];
+		mapTexture(p.tex, 0, ambientTexel);	
+		mapTexture(p.tex, 1, diffuseTexel);
+		
 		//for all 
 		for(int i = 0; i < light.points.length; i++) {
 			for(int j = 0; j < light.points[0].length; j++) {
@@ -93,8 +107,6 @@ public class Material {
 				double[] N = bumpNormal;//getBumpNormal(p.tex, p.normal);
 				
 				if(N == null) N = p.normal;
-				ambientColor = mapTexture(p.tex, 0);	
-				diffuseColor = mapTexture(p.tex, 1);
 				
 				double[] R = reflect(S, N); 
 				R = normalize(R);
@@ -103,8 +115,8 @@ public class Material {
 				double RdotV = dotProduct(R, V);
 				
 				for(int l = 0; l < 3; l++) {
-					color[l] += (double)(ka[l]*ambientColor[l]*light.ambient[l] 
-							+ kd[l]*diffuseColor[l]*dotProduct(S, N)*light.diffuse[l] 
+					color[l] += (double)(ka[l]*ambientTexel[l]*light.ambient[l] 
+							+ kd[l]*diffuseTexel[l]*dotProduct(S, N)*light.diffuse[l] 
 							+ ks[l]*Math.pow(RdotV, ns)*light.specular[l]);
 					
 				}
@@ -124,86 +136,26 @@ public class Material {
 	 * 
 	 * @param t				texture co-ordinates(u, v)	
 	 * @param imageType		type of texture image(ambient,diffuse or specular)
-	 * @return				color at given (u, v)
+	 * @param color			receives the color at given (u, v), {0, 0, 0} if there is no texture
 	 */
-	private double[] mapTexture(Texture t, int imageType) {
-		BufferedImage image = null;
+	private void mapTexture(Texture t, int imageType, double[] color) {
+		TextureImage image = null;
 		switch(imageType) {
 		case 0 : 
-			image = ambientTexImage;
+			image = ambientTex;
 			break;
 		case 1 :
-			image = diffuseTexImage;
+			image = diffuseTex;
 			break;
 		case 2 :
-			image = specularTexImage;
+			image = specularTex;
 			break;
 		}
-		if(image == null) return new double[]{0,0,0};//ambientColor;
-		
-		//u and v values range from 0 to 1
-		//we need to convert them to the image indices (0 to image row or column)
-				
-		int width = image.getWidth() , //row
-			height = image.getHeight(); //column
-		
-		int iMax = width - 1, jMax = height - 1;
-		
-		
-		t.u = 1 - t.u;
-		t.v = 1 - t.v;
-		t.u = Math.abs(t.u % 1);
-		t.v = Math.abs(t.v % 1);
-		double uInc = (double)1/width, vInc = (double)1/height;
-		double u0 = 0, v0 = 0, u1 = 1, v1 = 1;
-		while(u0 < t.u) {
-			u0 = u0 + uInc;
-		}
-		if(u0 > t.u) u0 = u0 - uInc;
-		u1 = u0 + uInc;
-		
-		while(v0 < t.v) {
-			v0 = v0 + vInc;
-		}
-		if(v0 > t.v) v0 = v0 - vInc;
-		v1 = v0 + vInc;
-		
-		int[] i = new int[4], j = new int[4];
-		i[0] = (int)Math.round(u0*iMax) % width; j[0] = (int)Math.round(v0*jMax) % height;
-		i[1] = (int)Math.round(u0*iMax) % width; j[1] = (int)Math.round(v1*jMax) % height;
-		i[2] = (int)Math.round(u1*iMax) % width; j[2] = (int)Math.round(v0*jMax) % height;
-		i[3] = (int)Math.round(u1*iMax) % width; j[3] = (int)Math.round(v1*jMax) % height;
-							
-		double deltaU = t.u - u0, deltaV = t.v - v0;
-		double red = 0, green = 0, blue = 0;
-		
-		Color c0 = new Color(image.getRGB(i[0], j[0]));
-		Color c1 = new Color(image.getRGB(i[1], j[1]));
-		Color c2 = new Color(image.getRGB(i[2], j[2]));
-		Color c3 = new Color(image.getRGB(i[3], j[3]));
-		red = (1 - deltaU)*(1-deltaV)*c0.getRed() + deltaU*(1-deltaV)*c2.getRed()
-				+ (1-deltaU)*deltaV*c1.getRed() + deltaU*deltaV*c3.getRed();
-		red = (double)red/255;
-		green = (1 - deltaU)*(1-deltaV)*c0.getGreen() + deltaU*(1-deltaV)*c2.getGreen()
-				+ (1-deltaU)*deltaV*c1.getGreen() + deltaU*deltaV*c3.getGreen();
-		green = (double)green/255;
-		blue = (1 - deltaU)*(1-deltaV)*c0.getBlue() + deltaU*(1-deltaV)*c2.getBlue()
-				+ (1-deltaU)*deltaV*c1.getBlue() + deltaU*deltaV*c3.getBlue();
-		blue = (double)blue/255;
-		double[] color = {red,green,blue};
-		
-		/*
-		//average of the four pixels
-		for(int k = 0; k < 4; k++) {
-			Color c = new Color(ambientTexImage.getRGB(i[k], j[k])); //getRGB() returns an int representing a color
-			red += (double)c.getRed()/255;
-			green += (double)c.getGreen()/255;
-			blue += (double)c.getBlue()/255;
+		if(image == null || t == null) {
+			color[0] = 0; color[1] = 0; color[2] = 0;
+			return;
 		}
-		*/
-		
-		return color;
-		
+		image.sample(t.u, t.v, t.footprint, color);
 	}
 	
 	/**
@@ -0,0 +1,362 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Class Mesh stores the geometry of a Shape in primitive arrays.
+ * Vertex positions, normals and texture coordinates are stored once,
+ * and each triangle is a triple of indices into them plus a material id.
+ * Intersection and shading read directly from these arrays.
+ *
+ * Triangle i uses:
+ * 		vertices	vertexIndices[3i], vertexIndices[3i + 1], vertexIndices[3i + 2]
+ * 		(u, v)		uvIndices[3i], ... (-1 if the triangle has no texture)
+ * 		material	materials[materialIds[i]]
+ *
+ * @author Kirti M D
+ *
+ */
+public class Mesh {
+
+	int noOfVertices, noOfTriangles;
+
+	double[] positions; //x, y, z of each vertex
+	double[] normals; //vertex normals, same layout as positions
+	double[] uvs; //u, v of each texture coordinate
+
+	int[] vertexIndices; //3 per triangle
+	int[] uvIndices; //3 per triangle
+	double[] faceNormals; //3 per triangle, used while interpolating vertex normals
+	int[] smoothingGroups; //1 per triangle
+	int[] materialIds; //1 per triangle
+	Material[] materials;
+
+	private Mesh() {
+	}
+	
+	/**
+	 * Copies the given triangles into the arrays. Vertices and texture coordinates
+	 * shared by several triangles(same Point or Texture object) are stored once.
+	 * Vertices that are not used by any triangle are left out.
+	 *
+	 * @param faces		triangles created by the parser
+	 */
+	Mesh(ArrayList<Triangle> faces) {
+		noOfTriangles = faces.size();
+		vertexIndices = new int[3*noOfTriangles];
+		uvIndices = new int[3*noOfTriangles];
+		faceNormals = new double[3*noOfTriangles];
+		smoothingGroups = new int[noOfTriangles];
+		materialIds = new int[noOfTriangles];
+
+		IdentityHashMap<Point, Integer> vertexIds = new IdentityHashMap<Point, Integer>();
+		IdentityHashMap<Texture, Integer> uvIds = new IdentityHashMap<Texture, Integer>();
+		IdentityHashMap<Material, Integer> materialIdMap = new IdentityHashMap<Material, Integer>();
+		ArrayList<Point> vertexList = new ArrayList<Point>();
+		ArrayList<Texture> uvList = new ArrayList<Texture>();
+		ArrayList<Material> materialList = new ArrayList<Material>();
+
+		for(int i = 0; i < noOfTriangles; i++) {
+			Triangle tri = faces.get(i);
+			Point[] p = {tri.p0, tri.p1, tri.p2};
+			Texture[] t = {tri.t0, tri.t1, tri.t2};
+			for(int c = 0; c < 3; c++) {
+				Integer v = vertexIds.get(p[c]);
+				if(v == null) {
+					v = vertexList.size();
+					vertexIds.put(p[c], v);
+					vertexList.add(p[c]);
+				}
+				vertexIndices[3*i + c] = v;
+
+				if(t[c] == null) {
+					uvIndices[3*i + c] = -1;
+					continue;
+				}
+				Integer uv = uvIds.get(t[c]);
+				if(uv == null) {
+					uv = uvList.size();
+					uvIds.put(t[c], uv);
+					uvList.add(t[c]);
+				}
+				uvIndices[3*i + c] = uv;
+			}
+
+			faceNormals[3*i] = tri.normal[0]; faceNormals[3*i + 1] = tri.normal[1]; faceNormals[3*i + 2] = tri.normal[2];
+			smoothingGroups[i] = tri.smoothingGroup;
+
+			Material mat = (tri.material != null) ? tri.material : Material.DEFAULT;
+			Integer m = materialIdMap.get(mat);
+			if(m == null) {
+				m = materialList.size();
+				materialIdMap.put(mat, m);
+				materialList.add(mat);
+			}
+			materialIds[i] = m;
+		}
+
+		noOfVertices = vertexList.size();
+		positions = new double[3*noOfVertices];
+		normals = new double[3*noOfVertices];
+		for(int v = 0; v < noOfVertices; v++) {
+			Point p = vertexList.get(v);
+			positions[3*v] = p.x; positions[3*v + 1] = p.y; positions[3*v + 2] = p.z;
+			if(p.normal != null) {
+				normals[3*v] = p.normal[0]; normals[3*v + 1] = p.normal[1]; normals[3*v + 2] = p.normal[2];
+			}
+		}
+
+		uvs = new double[2*uvList.size()];
+		for(int k = 0; k < uvList.size(); k++) {
+			uvs[2*k] = uvList.get(k).u; uvs[2*k + 1] = uvList.get(k).v;
+		}
+
+		materials = materialList.toArray(new Material[materialList.size()]);
+	}
+
+	/**
+	 * Builds the mesh from the arrays of a parsed file. Like the other constructor,
+	 * vertices, texture coordinates and materials are numbered in the order in which
+	 * triangles first use them, and unused ones are left out.
+	 *
+	 * The face normal is the average of the vertex normals if all three vertices have
+	 * one(vn in the obj file), otherwise (p1 - p0) cross (p2 - p0).
+	 *
+	 * @param filePositions		x, y, z of all vertices in the file
+	 * @param fileNormals		normal of each vertex in the file, {0, 0, 0} if not given
+	 * @param fileUVs			u, v of all texture coordinates in the file
+	 * @param triVertices		3 vertex indices per triangle, into filePositions
+	 * @param triUVs			3 indices per triangle into fileUVs, -1 if not given
+	 * @param triSmoothingGroups	smoothing group of each triangle
+	 * @param triMaterials		index of each triangle's material in materialTable,
+	 * 							-1 for Material.DEFAULT
+	 * @param materialTable		materials read from the mtl file
+	 */
+	Mesh(double[] filePositions, double[] fileNormals, double[] fileUVs,
+		 int[] triVertices, int[] triUVs, int[] triSmoothingGroups, int[] triMaterials, Material[] materialTable) {
+		noOfTriangles = triSmoothingGroups.length;
+		vertexIndices = new int[3*noOfTriangles];
+		uvIndices = new int[3*noOfTriangles];
+		faceNormals = new double[3*noOfTriangles];
+		smoothingGroups = triSmoothingGroups;
+		materialIds = new int[noOfTriangles];
+
+		int[] vertexIds = new int[filePositions.length/3], uvIds = new int[fileUVs.length/2];
+		int[] materialIdMap = new int[materialTable.length + 1]; //last slot for Material.DEFAULT
+		Arrays.fill(vertexIds, -1);
+		Arrays.fill(uvIds, -1);
+		Arrays.fill(materialIdMap, -1);
+		int noOfUVs = 0, noOfMaterials = 0;
+		for(int k = 0; k < 3*noOfTriangles; k++) {
+			int v = triVertices[k];
+			if(vertexIds[v] == -1) vertexIds[v] = noOfVertices++;
+			vertexIndices[k] = vertexIds[v];
+
+			int uv = triUVs[k];
+			if(uv >= 0 && uvIds[uv] == -1) uvIds[uv] = noOfUVs++;
+			uvIndices[k] = (uv >= 0) ? uvIds[uv] : -1;
+		}
+		for(int i = 0; i < noOfTriangles; i++) {
+			int m = (triMaterials[i] >= 0) ? triMaterials[i] : materialTable.length;
+			if(materialIdMap[m] == -1) materialIdMap[m] = noOfMaterials++;
+			materialIds[i] = materialIdMap[m];
+		}
+
+		positions = new double[3*noOfVertices];
+		normals = new double[3*noOfVertices];
+		for(int v = 0; v < vertexIds.length; v++) {
+			int id = vertexIds[v];
+			if(id == -1) continue;
+			System.arraycopy(filePositions, 3*v, positions, 3*id, 3);
+			System.arraycopy(fileNormals, 3*v, normals, 3*id, 3);
+		}
+		uvs = new double[2*noOfUVs];
+		for(int k = 0; k < uvIds.length; k++) {
+			if(uvIds[k] != -1) System.arraycopy(fileUVs, 2*k, uvs, 2*uvIds[k], 2);
+		}
+		materials = new Material[noOfMaterials];
+		for(int m = 0; m < materialIdMap.length; m++) {
+			if(materialIdMap[m] != -1) materials[materialIdMap[m]] = (m < materialTable.length) ? materialTable[m] : Material.DEFAULT;
+		}
+
+		for(int i = 0; i < noOfTriangles; i++) {
+			int i0 = 3*vertexIndices[3*i], i1 = 3*vertexIndices[3*i + 1], i2 = 3*vertexIndices[3*i + 2];
+			double nx, ny, nz;
+			if(hasNormal(i0) && hasNormal(i1) && hasNormal(i2)) {
+				nx = (normals[i0] + normals[i1] + normals[i2])/3;
+				ny = (normals[i0 + 1] + normals[i1 + 1] + normals[i2 + 1])/3;
+				nz = (normals[i0 + 2] + normals[i1 + 2] + normals[i2 + 2])/3;
+			} else {
+				double ax = positions[i1] - positions[i0], ay = positions[i1 + 1] - positions[i0 + 1], az = positions[i1 + 2] - positions[i0 + 2];
+				double bx = positions[i2] - positions[i0], by = positions[i2 + 1] - positions[i0 + 1], bz = positions[i2 + 2] - positions[i0 + 2];
+				nx = ay*bz - az*by;
+				ny = -(ax*bz - az*bx);
+				nz = ax*by - ay*bx;
+			}
+			double l = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if(l == 0) continue; //degenerate triangle
+			faceNormals[3*i] = nx/l; faceNormals[3*i + 1] = ny/l; faceNormals[3*i + 2] = nz/l;
+		}
+	}
+
+	private boolean hasNormal(int i) {
+		return normals[i] != 0 || normals[i + 1] != 0 || normals[i + 2] != 0;
+	}
+
+	/**
+	 * Applies a transformation to the vertices and to the vertex and face normals.
+	 * Normals are normalized again, zero normals(not given) stay zero.
+	 *
+	 * @param m		transformation, e.g. Transform.getToWorld()
+	 */
+	public void transform(Affine m) {
+		double[] out = new double[3];
+		for(int v = 0; v < noOfVertices; v++) {
+			m.transformPoint(positions[3*v], positions[3*v + 1], positions[3*v + 2], out);
+			positions[3*v] = out[0]; positions[3*v + 1] = out[1]; positions[3*v + 2] = out[2];
+			transformNormal(m, normals, v, out);
+		}
+		for(int i = 0; i < noOfTriangles; i++) {
+			transformNormal(m, faceNormals, i, out);
+		}
+	}
+
+	private static void transformNormal(Affine m, double[] a, int i, double[] out) {
+		m.transformNormal(a[3*i], a[3*i + 1], a[3*i + 2], out);
+		double l = Math.sqrt(out[0]*out[0] + out[1]*out[1] + out[2]*out[2]);
+		if(l == 0) return;
+		a[3*i] = out[0]/l; a[3*i + 1] = out[1]/l; a[3*i + 2] = out[2]/l;
+	}
+
+	/**
+	 * Sets the same material for all triangles.
+	 *
+	 * @param mat	Material object
+	 */
+	public void setMaterial(Material mat) {
+		materials = new Material[]{mat};
+		for(int i = 0; i < noOfTriangles; i++) {
+			materialIds[i] = 0;
+		}
+	}
+
+	public Material getMaterial(int tri) {
+		return materials[materialIds[tri]];
+	}
+
+	/**
+	 * @return	estimated bytes of the arrays and of the textures of the materials
+	 */
+	long getMemorySize() {
+		long size = 8L*(positions.length + normals.length + uvs.length + faceNormals.length) +
+					4L*(vertexIndices.length + uvIndices.length + smoothingGroups.length + materialIds.length);
+		for(Material m : materials) size += m.getMemorySize();
+		return size;
+	}
+
+	/**
+	 * Sets the normal of vertex v, after normalizing it. A zero normal(e.g. the sum of two
+	 * opposite face normals) is kept as zero, so the face normal is used, see Ray.createHitPoint().
+	 */
+	public void setNormal(int v, double nx, double ny, double nz) {
+		double l = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		if(l == 0) {
+			normals[3*v] = normals[3*v + 1] = normals[3*v + 2] = 0;
+			return;
+		}
+		normals[3*v] = nx/l; normals[3*v + 1] = ny/l; normals[3*v + 2] = nz/l;
+	}
+	
+	/**
+	 * Gives a vertex used by triangles of several smoothing groups a copy for each further group,
+	 * so that every vertex is used by one group only and can have the normal of that group.
+	 * Triangles outside any group(s off) are one more group. Copies start with the position
+	 * and normal of the vertex.
+	 */
+	void splitVerticesBySmoothingGroup() {
+		int[] vertexGroup = new int[noOfVertices]; //group of the triangles using the vertex itself
+		Arrays.fill(vertexGroup, Integer.MIN_VALUE);
+		HashMap<Long, Integer> copies = new HashMap<Long, Integer>(); //(vertex, group) -> copy
+		ObjChunk.IntArray copied = new ObjChunk.IntArray(); //vertex of each copy
+		for(int k = 0; k < 3*noOfTriangles; k++) {
+			int v = vertexIndices[k], s = smoothingGroups[k/3];
+			if(vertexGroup[v] == Integer.MIN_VALUE) vertexGroup[v] = s;
+			if(vertexGroup[v] == s) continue;
+
+			long key = ((long)v << 32) | (s & 0xffffffffL);
+			Integer copy = copies.get(key);
+			if(copy == null) {
+				copy = noOfVertices + copied.size;
+				copies.put(key, copy);
+				copied.add(v);
+			}
+			vertexIndices[k] = copy;
+		}
+		if(copied.size == 0) return;
+
+		positions = Arrays.copyOf(positions, 3*(noOfVertices + copied.size));
+		normals = Arrays.copyOf(normals, 3*(noOfVertices + copied.size));
+		for(int c = 0; c < copied.size; c++) {
+			System.arraycopy(positions, 3*copied.get(c), positions, 3*(noOfVertices + c), 3);
+			System.arraycopy(normals, 3*copied.get(c), normals, 3*(noOfVertices + c), 3);
+		}
+		noOfVertices += copied.size;
+	}
+	
+	/**
+	 * Writes the arrays to the scene cache. Materials are written by name,
+	 * an empty name stands for Material.DEFAULT.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(noOfVertices);
+		out.writeInt(noOfTriangles);
+		SceneCache.writeDoubles(out, positions);
+		SceneCache.writeDoubles(out, normals);
+		SceneCache.writeDoubles(out, uvs);
+		SceneCache.writeInts(out, vertexIndices);
+		SceneCache.writeInts(out, uvIndices);
+		SceneCache.writeDoubles(out, faceNormals);
+		SceneCache.writeInts(out, smoothingGroups);
+		SceneCache.writeInts(out, materialIds);
+		out.writeInt(materials.length);
+		for(Material m : materials) {
+			SceneCache.writeString(out, (m == Material.DEFAULT) ? "" : m.name);
+		}
+	}
+	
+	/**
+	 * Reads a Mesh written by write().
+	 * 
+	 * @param in			scene cache, positioned at the mesh
+	 * @param mtlMaterials	materials read from the mtl file, looked up by name
+	 */
+	static Mesh read(ByteBuffer in, ArrayList<Material> mtlMaterials) {
+		Mesh mesh = new Mesh();
+		mesh.noOfVertices = in.getInt();
+		mesh.noOfTriangles = in.getInt();
+		mesh.positions = SceneCache.readDoubles(in);
+		mesh.normals = SceneCache.readDoubles(in);
+		mesh.uvs = SceneCache.readDoubles(in);
+		mesh.vertexIndices = SceneCache.readInts(in);
+		mesh.uvIndices = SceneCache.readInts(in);
+		mesh.faceNormals = SceneCache.readDoubles(in);
+		mesh.smoothingGroups = SceneCache.readInts(in);
+		mesh.materialIds = SceneCache.readInts(in);
+		mesh.materials = new Material[in.getInt()];
+		for(int m = 0; m < mesh.materials.length; m++) {
+			String name = SceneCache.readString(in);
+			mesh.materials[m] = Material.DEFAULT;
+			for(Material mat : mtlMaterials) {
+				if(mat.name.equals(name)) {
+					mesh.materials[m] = mat;
+					break;
+				}
+			}
+		}
+		return mesh;
+	}
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class ObjChunk parses one block of lines of an obj file. The blocks of a file
+ * are parsed in parallel, see FileParser.parseObjAndMtlFile().
+ *
+ * The bytes are tokenized directly, no String is created for numbers or face data.
+ * Each block is read twice :
+ * 		COUNT	counts the v, vt and vn lines, so that every block knows
+ * 				where its vertices go in the arrays of the whole file
+ * 		PARSE	writes the vertices into those arrays and keeps the faces
+ * 				and the usemtl, s, g and mtllib statements of the block
+ *
+ * @author Kirti M D
+ *
+ */
+public class ObjChunk extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int COUNT = 1, PARSE = 2;
+
+	//statements that change the state of the following faces
+	static final int USEMTL = 1, SMOOTHING = 2, GROUP = 3;
+
+	private static final double[] POW10 = new double[23]; //exact powers of 10
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1]*10;
+	}
+
+	private FileChannel channel;
+	private long start, length; //part of the file in this block, starts and ends at a line boundary
+	int pass;
+
+	private byte[] b;
+	private int pos; //current byte in b
+
+	//COUNT
+	int noOfV, noOfVt, noOfVn;
+
+	//PARSE. Vertices of the whole file, this block writes from its offsets on
+	double[] positions, uvs, vns;
+	int vOffset, vtOffset, vnOffset;
+
+	//faces : corners of polygon p are polygonStart[p] to polygonStart[p + 1] - 1
+	//indices are 0 based into the arrays of the whole file, -1 if not given
+	IntArray polygonStart = new IntArray(), cornerV = new IntArray(), cornerVt = new IntArray(), cornerVn = new IntArray();
+
+	//statements, in order : the polygon they come before, their type, and their value
+	//(the smoothing group, or an index into names for usemtl and g)
+	IntArray statementPolygon = new IntArray(), statementType = new IntArray(), statementValue = new IntArray();
+	ArrayList<String> names = new ArrayList<String>();
+	ArrayList<String> mtllibs = new ArrayList<String>();
+
+	ObjChunk(FileChannel channel1, long start1, long length1) {
+		channel = channel1;
+		start = start1;
+		length = length1;
+	}
+
+	@Override
+	protected void compute() {
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			b = new byte[(int)length];
+			buffer.get(b);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		pos = 0;
+		if(pass == COUNT) count();
+		else parse();
+		b = null;
+	}
+
+	private void count() {
+		while(pos < b.length) {
+			skipSpaces();
+			if(pos + 1 < b.length && b[pos] == 'v') {
+				byte c = b[pos + 1];
+				if(c == ' ' || c == '\t') noOfV++;
+				else if(c == 't' && isSpace(pos + 2)) noOfVt++;
+				else if(c == 'n' && isSpace(pos + 2)) noOfVn++;
+			}
+			skipLine();
+		}
+	}
+
+	private void parse() {
+		int v = 0, vt = 0, vn = 0; //no. of vertices read so far in this block
+		polygonStart.add(0);
+		while(pos < b.length) {
+			skipSpaces();
+			if(pos >= b.length) break;
+
+			if(keyword("v")) {
+				for(int k = 0; k < 3; k++) positions[3*(vOffset + v) + k] = parseDouble();
+				v++;
+			} else if(keyword("vt")) {
+				for(int k = 0; k < 2; k++) { //v may be left out(1D textures), it is then 0
+					skipSpaces();
+					uvs[2*(vtOffset + vt) + k] = atLineEnd() ? 0 : parseDouble();
+				}
+				vt++;
+			} else if(keyword("vn")) {
+				for(int k = 0; k < 3; k++) vns[3*(vnOffset + vn) + k] = parseDouble();
+				vn++;
+			} else if(keyword("f")) {
+				while(true) {
+					skipSpaces();
+					if(atLineEnd()) break;
+					int before = pos;
+					int i = parseIndex(vOffset + v);
+					if(pos == before) break; //not a number, ignore the rest of the line
+					int t = -1, n = -1;
+					if(pos < b.length && b[pos] == '/') {
+						pos++;
+						if(pos < b.length && b[pos] != '/') t = parseIndex(vtOffset + vt);
+						if(pos < b.length && b[pos] == '/') {
+							pos++;
+							n = parseIndex(vnOffset + vn);
+						}
+					}
+					cornerV.add(i);
+					cornerVt.add(t);
+					cornerVn.add(n);
+				}
+				polygonStart.add(cornerV.size);
+			} else if(keyword("usemtl")) {
+				addStatement(USEMTL, names.size());
+				names.add(restOfLine());
+			} else if(keyword("s")) {
+				String s = restOfLine();
+				addStatement(SMOOTHING, s.startsWith("off") ? -1 : s.startsWith("on") ? 1 : Integer.parseInt(s));
+			} else if(keyword("g")) {
+				addStatement(GROUP, names.size());
+				names.add(restOfLine());
+			} else if(keyword("mtllib")) {
+				addMtllibs(restOfLine(), mtllibs);
+			}
+			skipLine();
+		}
+	}
+
+	/**
+	 * Adds the file names of an mtllib line, which can name several, separated by spaces or tabs
+	 *
+	 * @param rest		the line after mtllib
+	 */
+	static void addMtllibs(String rest, ArrayList<String> mtllibs) {
+		for(String name : rest.trim().split("[ \t]+")) {
+			if(!name.isEmpty()) mtllibs.add(name);
+		}
+	}
+
+	int getNoOfPolygons() {
+		return polygonStart.size - 1;
+	}
+
+	private void addStatement(int type, int value) {
+		statementPolygon.add(getNoOfPolygons());
+		statementType.add(type);
+		statementValue.add(value);
+	}
+
+	/**
+	 * If the line continues with word followed by a space, moves past both.
+	 */
+	private boolean keyword(String word) {
+		int n = word.length();
+		if(!isSpace(pos + n)) return false;
+		for(int i = 0; i < n; i++) {
+			if(b[pos + i] != word.charAt(i)) return false;
+		}
+		pos += n;
+		skipSpaces();
+		return true;
+	}
+
+	/**
+	 * Reads a 1 based(or negative, i.e. relative) obj index.
+	 *
+	 * @param noOfRead		no. of elements of this type read so far in the file
+	 * @return				0 based index
+	 */
+	private int parseIndex(int noOfRead) {
+		boolean negative = false;
+		if(pos < b.length && b[pos] == '-') { negative = true; pos++; }
+		int i = 0;
+		while(pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+			i = 10*i + (b[pos++] - '0');
+		}
+		return negative ? noOfRead - i : i - 1;
+	}
+
+	/**
+	 * Reads a decimal number. Numbers with at most 18 significant digits and a small
+	 * exponent are computed from the digits in one correctly rounded operation, others
+	 * are given to Double.parseDouble(). Both give the same result as Double.parseDouble().
+	 */
+	private double parseDouble() {
+		skipSpaces();
+		int first = pos;
+		boolean negative = false;
+		if(pos < b.length && (b[pos] == '-' || b[pos] == '+')) negative = b[pos++] == '-';
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean exact = true;
+		while(pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+			if(digits < 18) { mantissa = 10*mantissa + (b[pos] - '0'); if(mantissa > 0) digits++; }
+			else { exponent++; exact = false; }
+			pos++;
+		}
+		if(pos < b.length && b[pos] == '.') {
+			pos++;
+			while(pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+				if(digits < 18) { mantissa = 10*mantissa + (b[pos] - '0'); if(mantissa > 0) digits++; exponent--; }
+				else exact = false;
+				pos++;
+			}
+		}
+		if(pos < b.length && (b[pos] == 'e' || b[pos] == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if(pos < b.length && (b[pos] == '-' || b[pos] == '+')) negativeExponent = b[pos++] == '-';
+			int e = 0;
+			while(pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+				if(e < 10000) e = 10*e + (b[pos] - '0');
+				pos++;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		//anything else(nan, inf, hex) is left to Double.parseDouble()
+		while(pos < b.length && !isSpace(pos) && b[pos] != '\n' && b[pos] != '\r') {
+			pos++;
+			exact = false;
+		}
+
+		if(!exact || pos == first || mantissa >= (1L << 53) || exponent < -22 || exponent > 22) {
+			return Double.parseDouble(new String(b, first, pos - first, StandardCharsets.US_ASCII));
+		}
+		double d = (exponent < 0) ? mantissa/POW10[-exponent] : mantissa*POW10[exponent];
+		return negative ? -d : d;
+	}
+
+	private String restOfLine() {
+		int first = pos, end = pos;
+		while(end < b.length && b[end] != '\n' && b[end] != '\r') end++;
+		pos = end;
+		return new String(b, first, end - first, StandardCharsets.UTF_8).trim();
+	}
+
+	private boolean isSpace(int i) {
+		return i < b.length && (b[i] == ' ' || b[i] == '\t');
+	}
+
+	private void skipSpaces() {
+		while(isSpace(pos)) pos++;
+	}
+
+	private boolean atLineEnd() {
+		return pos >= b.length || b[pos] == '\n' || b[pos] == '\r' || b[pos] == '#';
+	}
+
+	private void skipLine() {
+		while(pos < b.length && b[pos] != '\n') pos++;
+		pos++;
+	}
+
+	/**
+	 * Growable int array
+	 */
+	static class IntArray {
+		int[] data = new int[64];
+		int size;
+
+		void add(int i) {
+			if(size == data.length) data = Arrays.copyOf(data, 2*size);
+			data[size++] = i;
+		}
+
+		int get(int k) {
+			return data[k];
+		}
+	}
+}
@@ -1,18 +1,24 @@
-import java.util.ArrayList;
 import Jama.*; 
 
 /**
  * Class Ray has the origin and direction for each ray.
- * It contains the intersection tests for the bounding box and splitting plane
- * for each kd-tree node, and triangle as well.
+ * It contains the ray-triangle intersection tests and the shading of a hit.
  * 
  * @author Kirti M D
  *
  */
 public class Ray {
 
+	//ray-triangle kernels
+	static final int MOLLER_TRUMBORE = 1;
+	static final int JAMA = 2;
+	static int kernel = MOLLER_TRUMBORE; //kernel used by intersectsTriangle()
+	
 	private double x0, y0, z0; //origin
 	private double dx, dy, dz; //direction
+	double spread; //angle(radians) between this ray and the next sample's ray. 
+				   //Used to estimate the texture footprint at the hit. 0 : no filtering
+	double sampleX, sampleY; //of a camera ray, position of its sample in the image, in pixels from the top left
 	
 	Ray(double x1, double y1, double z1, double dx1, double dy1, double dz1) {
 		x0 = x1;
@@ -33,327 +39,269 @@ public class Ray {
 		
 	}
 	
-	
-
-
-	
 	/**
-	 * Calculates if this ray intersects the bounds and splitting plane of given node.
+	 * Finds out if this ray intersects triangle tri of the mesh closer than the current hit.
+	 * No shading is done here, so it can be called for every candidate triangle.
 	 * 
-	 * @param node		a kd-tree node
-	 * @param light		LightSource object
+	 * @param mesh		Mesh containing the triangle
+	 * @param tri		index of the triangle in mesh
+	 * @param hit		closest hit so far, updated if tri is closer
 	 * 
-	 * @return			point where intersection occurs
-	 * 					null if ray does not intersect bounds
+	 * @return			true if hit was updated
 	 */
-	public Point[] intersectsBoundingBox(KDNode node, LightSource light) { 
+	public boolean intersectsTriangle(Mesh mesh, int tri, Hit hit) {
+		
+		//(b1, b2) : barycentric coordinates
+		// where 0 < b1 < 1, 0 < b2 < 1 and 0 < b1+b2 < 1
+		//for a point P on the triangle :
+		//P(b1, b2) = (1 - b1 - b2)p0 + b1*p1 + b2*p2
+		//
+		//ray : r = o + td
+		//t : distance from ray origin to the triangle
+		// o + t*d = (1 - b1 - b2)p0 + b1*p1 + b2*p2
+		// b1*(p0 - p1) + b2(p0 - p2) + t*d = p0 - o
+		// so, we have 3 unknowns : b1, b2 and t
+		// writing above equation in matrix form :
+		// [p0-p1   p0 - p2   d][ b1 ] =  [ p0 - o ]
+		//						[ b2 ]
+		//						[ t  ]
+		//solve for u, v and t :
+		
+		double[] candidate = hit.candidate;
+		boolean found = (kernel == JAMA) ? solveWithJama(mesh, tri, candidate) : solveMollerTrumbore(mesh, tri, candidate);
+		if(!found) return false;
+		double b1 = candidate[0], b2 = candidate[1], t = candidate[2];
 		
-		Point[] pBox1 = intersectsBounds(node.bounds, light);
-		if(pBox1 == null) return null;
-		Point[] pBox2 = pBox1;
+		if(b1 < 0 || b1 > 1) return false;
+		if(b2 < 0) return false;
+		if(b1 + b2 > 1) return false;
+		if(t <= 0) return false;
+		if(t >= hit.t) return false; //not closer than the current hit
 		
-		Point split1 = intersectsSplitPlane(node.splitPlane);
-		Point split2 = split1;
-		return new Point[]{pBox2[0], split2, pBox2[1]};
+		hit.t = t;
+		hit.triangle = tri;
+		hit.b1 = b1;
+		hit.b2 = b2;
+		return true;
 	}
 	
 	/**
-	 * Finds out if this ray intersects any of the six faces of 
-	 * the bounding box. If there is an intersection, it will return the 
-	 * intersection point closest to the ray origin.
+	 * Creates the intersection point for a hit found by intersectsTriangle(), 
+	 * with its interpolated normal and texture coordinates. 
+	 * The color is set by shade(), once the point is in world space.
 	 * 
-	 * @param b		  bounds
-	 * @param light	  LightSource object
-	 * @return		  nearest intersection. 
-	 * 				  null, if ray does not intersect the bounding box.
+	 * @param mesh		Mesh containing the hit triangle
+	 * @param hit		closest hit of this ray
+	 * 
+	 * @return			Intersection point
 	 */
-	public Point[] intersectsBounds(Bounds b, LightSource light) {	
-		if(b == null) return null;
+	public Point createHitPoint(Mesh mesh, Hit hit) {
+		int tri = hit.triangle;
+		int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
+		double[] pos = mesh.positions, n = mesh.normals;
+		double b1 = hit.b1, b2 = hit.b2, b0 = 1 - b1 - b2, t = hit.t;
 		
-		//there will be either 0 or 2 intersections
-		ArrayList<Point> pts = new ArrayList<Point>(); 
-		
-		//normals are pointed outwards
-		double[] nLeft = {-1, 0, 0}, nRight = {1, 0, 0}, 
-				nTop = {0, 1, 0}, nBottom = {0, -1, 0}, 
-				nFront = {0, 0, 1}, nBack = {0, 0, -1};
-		
-		//bottom face
-		double A = nBottom[0], B = nBottom[1], C = nBottom[2]; 
-		double x = b.xMin, y = b.yMin, z = b.zMin; //a point on the plane
-		double F = -(x*A + y*B + z*C);	
-		double w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);	
-		Point pbot = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pbot.setNormal(A, B, C);
-		if(pbot.x < b.xMin || pbot.x > b.xMax 
-				|| pbot.z < b.zMin || pbot.z > b.zMax) {				
-			pbot = null; // if p is not within the bounds of the floor, it does not intersect it					
-		}
-		if(pbot != null && !pts.contains(pbot)) pts.add(pbot);
-	 
+		double px = x0 + t*dx;
+		double py = y0 + t*dy;
+		double pz = z0 + t*dz;
+		Point p = new Point(px, py, pz);
 		
-		//top face
-		A = nTop[0]; B = nTop[1]; C = nTop[2]; 
-		x = b.xMin; y = b.yMax; z = b.zMin; //a point on the plane
-		F = -(x*A + y*B + z*C);
-		w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);
-		Point pt = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pt.setNormal(A, B, C);
-		if(pt.x < b.xMin || pt.x > b.xMax 
-			|| pt.z < b.zMin || pt.z > b.zMax) {				
-			pt = null; 				
+		//interpolated normals
+		double nx = b0*n[i0] + b1*n[i1] + b2*n[i2];
+		double ny = b0*n[i0 + 1] + b1*n[i1 + 1] + b2*n[i2 + 1];
+		double nz = b0*n[i0 + 2] + b1*n[i1 + 2] + b2*n[i2 + 2];
+		if(nx == 0 && ny == 0 && nz == 0) {
+			//no vertex normals, use normal = (p1 - p0) cross (p2 - p0)
+			double ax = pos[i1] - pos[i0], ay = pos[i1 + 1] - pos[i0 + 1], az = pos[i1 + 2] - pos[i0 + 2];
+			double bx = pos[i2] - pos[i0], by = pos[i2 + 1] - pos[i0 + 1], bz = pos[i2 + 2] - pos[i0 + 2];
+			nx = ay*bz - az*by;
+			ny = -(ax*bz - az*bx);
+			nz = ax*by - ay*bx;
 		}
-		if(pt != null && !pts.contains(pt)) pts.add(pt);	
+		p.setNormal(nx, ny, nz);
 		
-		//left
-		A = nLeft[0]; B = nLeft[1]; C = nLeft[2]; 
-		x = b.xMin; y = b.yMin; z = b.zMin; //a point on the plane
-		F = -(x*A + y*B + z*C);
-		w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);
-		Point pl = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pl.setNormal(A, B, C);
-		if(pl.y < b.yMin || pl.y > b.yMax 
-					|| pl.z < b.zMin || pl.z > b.zMax) {				
-			pl = null; 			
-		} 
-		if(pl != null  && !pts.contains(pl)) pts.add(pl);
-	
-		//right
-		A = nRight[0]; B = nRight[1]; C = nRight[2]; 
-		x = b.xMax; y = b.yMin; z = b.zMin; //a point on the plane
-		F = -(x*A + y*B + z*C);
-		w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);
-		Point pr = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pr.setNormal(A, B, C);
-		if(pr.y < b.yMin || pr.y > b.yMax 
-					|| pr.z < b.zMin || pr.z > b.zMax) {				
-			pr = null; 
-		} 
-		if(pr != null && !pts.contains(pr)) pts.add(pr);
-	 			
-		//back
-		A = nBack[0]; B = nBack[1]; C = nBack[2]; 
-		x = b.xMax; y = b.yMin; z = b.zMin; //a point on the plane
-		F = -(x*A + y*B + z*C);
-		w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);
-		Point pb = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pb.setNormal(A, B, C);
-		if(pb.x < b.xMin || pb.x > b.xMax 
-					|| pb.y < b.yMin || pb.y > b.yMax) {				
-			pb = null; 
+		//interpolate texture
+		int t0 = mesh.uvIndices[3*tri], t1 = mesh.uvIndices[3*tri + 1], t2 = mesh.uvIndices[3*tri + 2];
+		if(t0 >= 0) {//if surface has texture
+			double[] uv = mesh.uvs;
+			double u = b0*uv[2*t0] + b1*uv[2*t1] + b2*uv[2*t2];
+			double v = b0*uv[2*t0 + 1] + b1*uv[2*t1 + 1] + b2*uv[2*t2 + 1];
+			p.tex = new Texture(u, v);
+			if(spread > 0) p.tex.footprint = getTextureFootprint(mesh, tri, t);
 		} 
-		if(pb != null  && !pts.contains(pb)) pts.add(pb);
 		
-		//front
-		A = nFront[0]; B = nFront[1]; C = nFront[2]; 
-		x = b.xMax; y = b.yMin; z = b.zMax; //a point on the plane
-		F = -(x*A + y*B + z*C);
-		w = (double)(-A*x0 - B*y0 - C*z0 - F)/(A*dx + B*dy + C*dz);
-		Point pf = new Point(x0 + dx*w, y0 + dy*w, z0 + dz*w);
-		pf.setNormal(A, B, C);
-		if(pf.x < b.xMin || pf.x > b.xMax 
-					|| pf.y < b.yMin || pf.y > b.yMax) {				
-			pf = null; 
-		}  
-		if(pf != null  && !pts.contains(pf)) pts.add(pf);
-
-		if(pts.size() == 0) return null;
-		
-		//a ray always intersects a box at two points
-		if(pts.size() != 2) return null;
-		Point p1 = pts.get(0), p2 = pts.get(1);
-		double[] dirOriginToP1 = {p1.x - x0, p1.y - y0, p1.z - z0},
-				 dirOriginToP2 = {p2.x - x0, p2.y - y0, p2.z - z0};
-		dirOriginToP1 = normalize(dirOriginToP1);
-		dirOriginToP2 = normalize(dirOriginToP2);
-		
-		Point enter = null, exit = null;
-		//in the same direction
-		if(Math.abs(dirOriginToP1[0] - dirOriginToP2[0]) < 0.001d &&
-		   Math.abs(dirOriginToP1[1] - dirOriginToP2[1]) < 0.001d && 
-		   Math.abs(dirOriginToP1[2] - dirOriginToP2[2]) < 0.001d) {
-			Point origin = new Point(x0, y0, z0);
-			double dist1 = p1.distanceFrom(origin), dist2 = p2.distanceFrom(origin);
-			enter = (dist1 < dist2) ? p1 : p2;
-			exit = (dist1 > dist2) ? p1 : p2;
-		} else { //opposite dir(when ray is inside box)
-			
-			if(Math.abs(dirOriginToP1[0] - dx) < 0.001d && 
-			   Math.abs(dirOriginToP1[1] - dy) < 0.001d && 
-			   Math.abs(dirOriginToP1[2] - dz) < 0.001d) {
-				exit =  p1;
-				enter = p2;
-			} else {
-				exit =  p2;
-				enter = p1;
-			}
-		}
-		return new Point[]{enter, exit};	
+		return p;
 	}
-
+	
 	/**
-	 * Finds intersection of this ray with given splitting plane 
-	 * for a kd-tree node.
+	 * Sets the color of a hit point seen along this ray. 
+	 * The point, the ray and the light must be in the same(world) space.
 	 * 
-	 * Equation of plane : Ax + By + Cz + D = 0
+	 * @param p			point created by createHitPoint()
+	 * @param mesh		Mesh containing the hit triangle
+	 * @param tri		index of the hit triangle
+	 * @param light		LightSource object
+	 */
+	public void shade(Point p, Mesh mesh, int tri, LightSource light) {
+		double[] bumpNormal = p.normal;
+		double[] eye = {x0, y0, z0};
+		p.color = mesh.getMaterial(tri).getColorForPoint(p, bumpNormal, eye, light);
+	}
+	
+	/**
+	 * Estimates the size, in texture co-ordinates, of the area this ray covers on the triangle.
+	 * The ray is treated as a cone of angle spread, whose cross section at distance t 
+	 * is stretched by 1/cos of the incidence angle. The side of a square with the same area 
+	 * is scaled by the ratio of texture to surface size of the triangle.
 	 * 
-	 * @param sp	SplitPlane object containing its position and dimensions
-	 * @return		intersection point(if any)
+	 * @param mesh		Mesh containing the triangle
+	 * @param tri		index of the triangle hit
+	 * @param t			distance to the hit
+	 * @return			footprint in (u, v) units
 	 */
-	public Point intersectsSplitPlane(SplitPlane sp) {
-		if(sp == null) return null;
+	private double getTextureFootprint(Mesh mesh, int tri, double t) {
+		int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
+		int t0 = 2*mesh.uvIndices[3*tri], t1 = 2*mesh.uvIndices[3*tri + 1], t2 = 2*mesh.uvIndices[3*tri + 2];
+		double[] pos = mesh.positions, uv = mesh.uvs;
 		
-		double[] norm = sp.normal;
+		double ax = pos[i1] - pos[i0], ay = pos[i1 + 1] - pos[i0 + 1], az = pos[i1 + 2] - pos[i0 + 2];
+		double bx = pos[i2] - pos[i0], by = pos[i2 + 1] - pos[i0 + 1], bz = pos[i2 + 2] - pos[i0 + 2];
+		double nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx;
+		double area = Math.sqrt(nx*nx + ny*ny + nz*nz); //twice the surface area
+		double uvArea = Math.abs((uv[t1] - uv[t0])*(uv[t2 + 1] - uv[t0 + 1]) - (uv[t1 + 1] - uv[t0 + 1])*(uv[t2] - uv[t0]));
+		if(area == 0) return 0;
 		
-		double A = norm[0], B = norm[1], C = norm[2]; 
-		double x = sp.xMax, y = sp.yMax, z = sp.zMax; //a point on the plane
-		double D = -(x*A + y*B + z*C);
-		if((A*dx + B*dy + C*dz) == 0) return null; //ray is parallel to plane
-		double t = -(double)(A*x0 + B*y0 + C*z0 + D)/(A*dx + B*dy + C*dz);
-		
-		Point p = new Point(x0 + dx*t, y0 + dy*t, z0 + dz*t);
-		p.setNormal(A, B, C);
-		 			
-		return p;
+		double cos = Math.abs(nx*dx + ny*dy + nz*dz)/area;
+		double width = t*spread/Math.sqrt(Math.max(cos, 0.01));
+		return width*Math.sqrt(uvArea/area);
 	}
 	
 	/**
-	 * Finds out if this ray intersects given triangle.
+	 * Solves o + t*d = (1 - b1 - b2)p0 + b1*p1 + b2*p2 by inverting the 3x3 matrix with Jama.
+	 * This was the original kernel. It allocates several matrices per test, 
+	 * and is kept to compare results against solveMollerTrumbore().
 	 * 
-	 * @param tri		Triangle object
-	 * @param light		LightSource object
-	 * 
-	 * @return			Intersection point
-	 * 					null if no intersection occurs
+	 * @param mesh		Mesh containing the triangle
+	 * @param tri		index of the triangle in mesh
+	 * @param hit		output : {b1, b2, t}
+	 * @return			false if the matrix is singular
 	 */
-	public Point intersectsTriangle(Triangle tri, LightSource light) {
-		
-		Point p0 = tri.p0, p1 = tri.p1, p2 = tri.p2;
-		
-		//(b1, b2) : barycentric coordinates
-		// where 0 < b1 < 1, 0 < b2 < 1 and 0 < b1+b2 < 1
-		//for a point P on the triangle :
-		//P(b1, b2) = (1 - b1 - b2)p0 + b1*p1 + b2*p2
-		//
-		//ray : r = o + td
-		//t : distance from ray origin to the triangle
-		// o + t*d = (1 - b1 - b2)p0 + b1*p1 + b2*p2
-		// b1*(p0 - p1) + b2(p0 - p2) + t*d = p0 - o
-		// so, we have 3 unknowns : b1, b2 and t
-		// writing above equation in matrix form :
-		// [p0-p1   p0 - p2   d][ b1 ] =  [ p0 - o ]
-		//						[ b2 ]
-		//						[ t  ]
-		//solve for u, v and t :
-		
+	public boolean solveWithJama(Mesh mesh, int tri, double[] hit) {
+		double[] pos = mesh.positions;
+		int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
 		Matrix m1 = new Matrix(new double[][]{
-			 {p0.x - p1.x, p0.x - p2.x, dx},
-			 {p0.y - p1.y, p0.y - p2.y, dy},
-			 {p0.z - p1.z, p0.z - p2.z, dz}});
+			 {pos[i0] - pos[i1], pos[i0] - pos[i2], dx},
+			 {pos[i0 + 1] - pos[i1 + 1], pos[i0 + 1] - pos[i2 + 1], dy},
+			 {pos[i0 + 2] - pos[i1 + 2], pos[i0 + 2] - pos[i2 + 2], dz}});
 		
 		//check if the m1 is singular(non-invertible)
 		//the determinant of a singular matrix is 0
 		//here, m1 will be singular, if p0 - p1 and p0 - p2 = 0 in any 2 out of 3 dimensions
 		//i.e. if p0, p1 and p2 are colinear
 		if(m1.det() == 0) { 
-			return null; 
+			return false; 
 		}
 		
 		Matrix m1Inv = m1.inverse();
-		Matrix m2 = new Matrix(new double[][]{{p0.x - x0}, {p0.y - y0}, {p0.z - z0}});  
+		Matrix m2 = new Matrix(new double[][]{{pos[i0] - x0}, {pos[i0 + 1] - y0}, {pos[i0 + 2] - z0}});  
 		Matrix m3 = m1Inv.times(m2);
 		
-		double b1 = m3.get(0, 0);
-		double b2 = m3.get(1, 0);
-		double t = m3.get(2, 0);
-		
-		if(b1 < 0 || b1 > 1) return null;
-		if(b2 < 0) return null;
-		if(b1 + b2 > 1) return null;
-		if(t <= 0) return null;
-		
-		double px = x0 + t*dx;
-		double py = y0 + t*dy;
-		double pz = z0 + t*dz;
-		Point p = new Point(px, py, pz);
+		hit[0] = m3.get(0, 0);
+		hit[1] = m3.get(1, 0);
+		hit[2] = m3.get(2, 0);
+		return true;
+	}
+	
+	/**
+	 * Solves the same system as solveWithJama() using the Moller-Trumbore method, 
+	 * i.e. Cramer's rule written with cross and dot products of the triangle edges.
+	 * It works on the coordinates directly and does not allocate.
+	 * 
+	 * @param mesh		Mesh containing the triangle
+	 * @param tri		index of the triangle in mesh
+	 * @param hit		output : {b1, b2, t}
+	 * @return			false if the ray is parallel to the triangle 
+	 * 					or the triangle is degenerate
+	 */
+	public boolean solveMollerTrumbore(Mesh mesh, int tri, double[] hit) {
+		double[] pos = mesh.positions;
+		int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
 		
-		//interpolated normals
-		if(tri.p0.normal != null && tri.p1.normal != null && tri.p2.normal != null) {
-			double nx = (1 - b1 - b2)*tri.p0.normal[0] + b1*tri.p1.normal[0] + b2*tri.p2.normal[0];
-			double ny = (1 - b1 - b2)*tri.p0.normal[1] + b1*tri.p1.normal[1] + b2*tri.p2.normal[1];
-			double nz = (1 - b1 - b2)*tri.p0.normal[2] + b1*tri.p1.normal[2] + b2*tri.p2.normal[2];
-			p.setNormal(nx, ny, nz);
-		}
-		else {
-			//normal = (p1 - p0) cross (p2 - p0)
-			Point p1Minusp0 = new Point(p1.x - p0.x, p1.y - p0.y, p1.z - p0.z);
-			Point p2Minusp0 = new Point(p2.x - p0.x, p2.y - p0.y, p2.z - p0.z);
-			
-			double nx = p1Minusp0.y*p2Minusp0.z - p1Minusp0.z*p2Minusp0.y;
-			double ny = -(p1Minusp0.x*p2Minusp0.z - p1Minusp0.z*p2Minusp0.x);
-			double nz = p1Minusp0.x*p2Minusp0.y - p1Minusp0.y*p2Minusp0.x;
-			
-			p.setNormal(nx, ny, nz);
-		}
+		//edges
+		double e1x = pos[i1] - pos[i0], e1y = pos[i1 + 1] - pos[i0 + 1], e1z = pos[i1 + 2] - pos[i0 + 2];
+		double e2x = pos[i2] - pos[i0], e2y = pos[i2 + 1] - pos[i0 + 1], e2z = pos[i2 + 2] - pos[i0 + 2];
 		
-		//interpolate texture
-		if(tri.t0 != null) {//if surface has texture
-			double u = (1 - b1 - b2)*tri.t0.u + b1*tri.t1.u + b2*tri.t2.u;
-			double v = (1 - b1 - b2)*tri.t0.v + b1*tri.t1.v + b2*tri.t2.v;
-			p.tex = new Texture(u, v);
-			//p.tex = getTex(tri, p);
-		} 
+		//P = d x e2
+		double px = dy*e2z - dz*e2y, py = dz*e2x - dx*e2z, pz = dx*e2y - dy*e2x;
+		double det = e1x*px + e1y*py + e1z*pz;
+		if(det == 0) return false;
+		double invDet = 1/det;
 		
-		if(p!=null) {
-			double[] bumpNormal = p.normal;
-			//double[] bumpNormal = tri.getBumpNormal(p.tex, p);
-			double[] eye = {x0, y0, z0};
-			p.color = tri.material.getColorForPoint(p, bumpNormal, eye, light);
-		}
+		//T = o - p0
+		double tx = x0 - pos[i0], ty = y0 - pos[i0 + 1], tz = z0 - pos[i0 + 2];
 		
-		return p;
+		//Q = T x e1
+		double qx = ty*e1z - tz*e1y, qy = tz*e1x - tx*e1z, qz = tx*e1y - ty*e1x;
 		
+		hit[0] = (tx*px + ty*py + tz*pz)*invDet; //b1
+		hit[1] = (dx*qx + dy*qy + dz*qz)*invDet; //b2
+		hit[2] = (e2x*qx + e2y*qy + e2z*qz)*invDet; //t
+		return true;
 	}
 	
-	public Texture getTex(Triangle tr, Point p) {
-		double[] p0Minusp1 = {tr.p0.x - tr.p1.x, tr.p0.y - tr.p1.y, tr.p0.z - tr.p1.z};
-		double[] p0Minusp2 = {tr.p0.x - tr.p2.x, tr.p0.y - tr.p2.y, tr.p0.z - tr.p2.z};
-		double area = crossProductMag(p0Minusp1, p0Minusp2);
-		double[] p0Minusp = {tr.p0.x - p.x, tr.p0.y - p.y, tr.p0.z - p.z};
-		double[] p1Minusp = {tr.p1.x - p.x, tr.p1.y - p.y, tr.p1.z - p.z};
-		double[] p2Minusp = {tr.p2.x - p.x, tr.p2.y - p.y, tr.p2.z - p.z};
-		
-		double area0 = (double)crossProductMag(p1Minusp, p2Minusp)/area;
-		double area1 = (double)crossProductMag(p2Minusp, p0Minusp)/area;
-		double area2 = (double)crossProductMag(p0Minusp, p1Minusp)/area;
+	/**
+	 * Same test as intersectsTriangle(), for the rays of a packet that start at the same point.
+	 * In the Moller-Trumbore solution, the edges, T, Q and the numerator of t depend only 
+	 * on the origin and the triangle, so they are computed once for all rays.
+	 * The results are the same as testing each ray alone.
+	 * 
+	 * @param rays		rays with a common origin
+	 * @param active	rays[i] is tested only if active[i]
+	 * @param n			no. of rays
+	 * @param mesh		Mesh containing the triangle
+	 * @param tri		index of the triangle in mesh
+	 * @param hits		closest hit of each ray so far, updated if tri is closer
+	 */
+	static void intersectsTriangle(Ray[] rays, boolean[] active, int n, Mesh mesh, int tri, Hit[] hits) {
+		if(kernel != MOLLER_TRUMBORE) {
+			for(int i = 0; i < n; i++) {
+				if(active[i]) rays[i].intersectsTriangle(mesh, tri, hits[i]);
+			}
+			return;
+		}
 		
-		double u = tr.t0.u*area0 + tr.t1.u*area1 + tr.t2.u*area2;
-		double v = tr.t0.v*area0 + tr.t1.v*area1 + tr.t2.v*area2;
+		double[] pos = mesh.positions;
+		int i0 = 3*mesh.vertexIndices[3*tri], i1 = 3*mesh.vertexIndices[3*tri + 1], i2 = 3*mesh.vertexIndices[3*tri + 2];
+		double e1x = pos[i1] - pos[i0], e1y = pos[i1 + 1] - pos[i0 + 1], e1z = pos[i1 + 2] - pos[i0 + 2];
+		double e2x = pos[i2] - pos[i0], e2y = pos[i2 + 1] - pos[i0 + 1], e2z = pos[i2 + 2] - pos[i0 + 2];
+		Ray r0 = rays[0];
+		double tx = r0.x0 - pos[i0], ty = r0.y0 - pos[i0 + 1], tz = r0.z0 - pos[i0 + 2];
+		double qx = ty*e1z - tz*e1y, qy = tz*e1x - tx*e1z, qz = tx*e1y - ty*e1x;
+		double tNumerator = e2x*qx + e2y*qy + e2z*qz;
 		
-		u=Math.abs(u%1); v=Math.abs(v%1);
-		return new Texture(u, v);
-	}
-	
-	
-	private double crossProductMag(double[] A, double[] B) {
-		double[] cross = new double[3];
-		cross[0] = A[1]*B[2] - A[2]*B[1];
-		cross[1] = -(A[0]*B[2] - A[2]*B[0]);
-		cross[2] = A[0]*B[1] - A[1]*B[0];
-		double mag = Math.sqrt(cross[0]*cross[0] + cross[1]*cross[1] + cross[2]*cross[2]);
-		return mag;
+		for(int i = 0; i < n; i++) {
+			if(!active[i]) continue;
+			Ray r = rays[i];
+			double px = r.dy*e2z - r.dz*e2y, py = r.dz*e2x - r.dx*e2z, pz = r.dx*e2y - r.dy*e2x;
+			double det = e1x*px + e1y*py + e1z*pz;
+			if(det == 0) continue;
+			double invDet = 1/det;
+			
+			double b1 = (tx*px + ty*py + tz*pz)*invDet;
+			if(b1 < 0 || b1 > 1) continue;
+			double b2 = (r.dx*qx + r.dy*qy + r.dz*qz)*invDet;
+			if(b2 < 0 || b1 + b2 > 1) continue;
+			double t = tNumerator*invDet;
+			Hit hit = hits[i];
+			if(t <= 0 || t >= hit.t) continue;
+			
+			hit.t = t;
+			hit.triangle = tri;
+			hit.b1 = b1;
+			hit.b2 = b2;
+		}
 	}
 	
-	 private double[] normalize(double[] A) {
-    	double l = Math.sqrt(A[0]*A[0] + A[1]*A[1] + A[2]*A[2]);
-    	if(l != 0) {
-    		A[0] = (double)A[0]/l;
-    		A[1] = (double)A[1]/l;
-    		A[2] = (double)A[2]/l;
-    	}
-    	return A;
-	}
-	    
 	//getter for ray origin
 	public double[] getOrigin() {
 		return new double[]{x0, y0, z0};
@@ -0,0 +1,67 @@
+/**
+ * Class RayPacket holds a bundle of neighbouring rays, e.g. the camera rays of a
+ * square of samples, and the per ray state used by KDTree.traversePacket().
+ * A packet is reused for all bundles traced by one thread, so the traversal
+ * does not allocate its stack and intervals for every bundle.
+ *
+ * @author Kirti M D
+ *
+ */
+public class RayPacket {
+
+	Ray[] rays; //rays[0] to rays[n - 1], in world space
+	int n;
+
+	//traversal state, one entry per ray
+	Ray[] transRays; //rays in object space
+	Hit[] hits;
+	double[] origin; //common origin of transRays, null if they start at different points
+	double[][] dir; //dir[axis][i] : direction of ray i along axis
+	double[] tMin, tMax, tSplit; //interval of each ray in the current node, empty if tMin > tMax
+	boolean[] done, inLeaf;
+
+	//traversal stack, per ray intervals of entry k at stackMin[k*capacity + i]
+	int[] stackNode = new int[0];
+	double[] stackMin = new double[0], stackMax = new double[0];
+
+	/**
+	 * @param capacity	largest no. of rays in the packet
+	 */
+	RayPacket(int capacity) {
+		rays = new Ray[capacity];
+		transRays = new Ray[capacity];
+		hits = new Hit[capacity];
+		for(int i = 0; i < capacity; i++) hits[i] = new Hit();
+		dir = new double[3][capacity];
+		tMin = new double[capacity];
+		tMax = new double[capacity];
+		tSplit = new double[capacity];
+		done = new boolean[capacity];
+		inLeaf = new boolean[capacity];
+	}
+
+	int getCapacity() {
+		return rays.length;
+	}
+
+	/**
+	 * Clears the hits of the first n rays, before they are traced
+	 */
+	void resetHits() {
+		for(int i = 0; i < n; i++) {
+			hits[i].t = Double.MAX_VALUE;
+			hits[i].triangle = -1;
+		}
+	}
+
+	/**
+	 * Makes the stack large enough for a tree of the given depth
+	 */
+	void ensureStack(int treeDepth) {
+		if(stackNode.length < treeDepth + 1) {
+			stackNode = new int[treeDepth + 1];
+			stackMin = new double[(treeDepth + 1)*getCapacity()];
+			stackMax = new double[(treeDepth + 1)*getCapacity()];
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Class ReconstructionFilter gives the weight with which a sample counts for the pixels
+ * around it, see FrameBuffer.setFilter().
+ *
+ * The weight depends on the offset (dx, dy) of the pixel center from the jittered position
+ * of the sample, in pixels, and is evaluate(|dx|)*evaluate(|dy|) as the filters are separable.
+ * A sample reaches the pixels whose center is less than the radius away along both axes,
+ * e.g. with the default radius of 2, Mitchell weighs pixels between 1 and 2 pixels away
+ * with its negative lobe, which sharpens edges.
+ *
+ * @author Kirti M D
+ *
+ */
+public class ReconstructionFilter {
+
+	//filter types
+	static final int BOX = 1;
+	static final int GAUSSIAN = 2;
+	static final int MITCHELL = 3;
+
+	private static final double B = 1/3d, C = 1/3d; //Mitchell-Netravali parameters
+
+	private int type;
+	private double radius; //in pixels
+
+	/**
+	 * @param type1		BOX, GAUSSIAN or MITCHELL
+	 * @param radius1	pixels from the sample at which the weight becomes 0, at least 0.5
+	 * 					so that every sample reaches a pixel,
+	 * 					0 : 0.5 for BOX(each pixel has only its own samples), 1.5 for GAUSSIAN, 2 for MITCHELL
+	 * @throws IllegalArgumentException	for a radius between 0 and 0.5
+	 */
+	ReconstructionFilter(int type1, double radius1) {
+		type = type1;
+		if(radius1 > 0 && radius1 < 0.5) {
+			throw new IllegalArgumentException("filter radius must be at least 0.5 pixels: " + radius1);
+		}
+		if(radius1 > 0) radius = radius1;
+		else radius = (type == BOX) ? 0.5 : (type == GAUSSIAN) ? 1.5 : 2;
+	}
+
+	/**
+	 * @return	weight at distance x(pixels) from the sample, along one axis
+	 */
+	double evaluate(double x) {
+		if(x >= radius) return 0;
+		switch(type) {
+			case GAUSSIAN :
+				double sigma = radius/3; //falls to about 1% at the radius, then shifted to reach 0
+				return Math.exp(-x*x/(2*sigma*sigma)) - Math.exp(-radius*radius/(2*sigma*sigma));
+			case MITCHELL :
+				x = 2*x/radius; //the filter is defined on 0 to 2
+				if(x < 1) return ((12 - 9*B - 6*C)*x*x*x + (-18 + 12*B + 6*C)*x*x + (6 - 2*B))/6;
+				return ((-B - 6*C)*x*x*x + (6*B + 30*C)*x*x + (-12*B - 48*C)*x + (8*B + 24*C))/6;
+			default :
+				return 1;
+		}
+	}
+
+	/**
+	 * @return	no. of pixels on each side of the pixel of a sample that the sample can reach
+	 */
+	int getBorder() {
+		//pixel x + i has its center at x + i + 0.5, less than the radius from a sample before x + 1
+		return (int)Math.ceil(radius + 0.5) - 1;
+	}
+
+	/**
+	 * @return	true if each pixel only has its own samples, each with weight 1,
+	 * 			which is the average of the samples without a filter
+	 */
+	boolean isIdentity() {
+		return type == BOX && radius == 0.5;
+	}
+
+	/**
+	 * @param name	box, gaussian or mitchell
+	 * @return		BOX, GAUSSIAN or MITCHELL
+	 * @throws IllegalArgumentException	for other names
+	 */
+	static int parseType(String name) {
+		if(name.equalsIgnoreCase("box")) return BOX;
+		if(name.equalsIgnoreCase("gaussian")) return GAUSSIAN;
+		if(name.equalsIgnoreCase("mitchell")) return MITCHELL;
+		throw new IllegalArgumentException("filter must be box, gaussian or mitchell: " + name);
+	}
+
+	@Override
+	public String toString() {
+		String name = (type == BOX) ? "box" : (type == GAUSSIAN) ? "gaussian" : "mitchell";
+		return name + " filter, radius " + radius + " pixels";
+	}
+}
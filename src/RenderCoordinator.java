@@ -0,0 +1,471 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class RenderCoordinator renders jobs on RenderWorker processes, usually on other machines :
+ *
+ * 	java -cp ... RenderCoordinator port=7117 jobs=jobs.txt summary=times.txt
+ * 	java -cp ... RenderWorker coordinator=host:7117	(on each machine)
+ *
+ * Each image is split into square tiles, which are handed to the connected workers over TCP.
+ * A worker asks for the next tile when it has sent the last one, so faster workers trace more
+ * tiles. The tiles are handed out in order of their trace time in the last job of the same size,
+ * slowest first, so no expensive tile is left for the end. When no tile is left, idle workers
+ * trace a copy of a tile still being traced, and the first result is used.
+ * The tiles of a worker that fails or stops answering are handed out again.
+ * The pixel sums returned for a tile are those of a single JVM, so the image is the same.
+ *
+ * Jobs and outputs are given as for BatchRender, and the coordinator also takes :
+ * 	port			TCP port to listen on, default 7117, 0 : any free port
+ * 	tile			pixels per side of a tile, default 64
+ * 	timeout			ms a worker may take for a tile before it is dropped, default 600000
+ * 	connectTimeout	ms a job waits while no worker is connected before it fails, default 600000
+ * 	localWorkers	no. of worker processes to start on this machine, e.g. for testing
+ * 	workerThreads	threads of each local worker, default 1
+ * Progressive rendering(budget, spp) is not supported. Adaptive sampling works per tile.
+ *
+ * Messages(big endian, see DataOutputStream) :
+ * 	worker : MAGIC, VERSION once, then RESULT, tile, trace ms, samples, no. of bytes, tile pixels(see FrameBuffer.writeTile())
+ * 			 or ERROR, message, after which it closes the connection, e.g. if the obj file is missing there
+ * 	coordinator : JOB, job no., no. of values, name and value of each
+ * 				  TILE, tile, xMin, yMin, xMax, yMax
+ * 				  DONE
+ *
+ * @author Kirti M D
+ *
+ */
+public class RenderCoordinator {
+
+	static final int MAGIC = 0x52445452; //"RDTR"
+	static final int VERSION = 3;
+	static final int JOB = 1, TILE = 2, DONE = 3, RESULT = 4, ERROR = 5; //message types
+
+	private static final String[] COORDINATOR_VALUES = {"port", "tile", "timeout", "connectTimeout", "localWorkers",
+														"workerThreads", "jobs", "summary", "out", "preview"};
+
+	private int tileSize;
+	private int timeout;
+	private long connectTimeout; //ms
+
+	//state shared by the worker threads, guarded by this
+	private int jobNo; //no. of the current job, from 1
+	private Map<String, String> jobValues; //values sent to the workers
+	private FrameBuffer frameBuffer;
+	private int[][] tiles; //{xMin, yMin, xMax, yMax} of each tile
+	private ArrayDeque<Integer> queue; //tiles not handed out
+	private boolean[] done;
+	private int[] running; //no. of workers tracing each tile
+	private long[] startTime; //when each tile was first handed out
+	private long[] traceTime; //ms taken by each finished tile
+	private int remaining; //tiles not finished
+	private long samples;
+	private int requeued; //tiles handed out again after a worker failed
+	private long[] lastTraceTime; //traceTime of the last job, with its size
+	private int lastWidth, lastHeight;
+	private boolean finished; //no more jobs
+	private int workers; //connected workers
+	private List<Process> localWorkers = new ArrayList<Process>();
+
+	RenderCoordinator(int tileSize1, int timeout1, long connectTimeout1) {
+		tileSize = tileSize1;
+		timeout = timeout1;
+		connectTimeout = connectTimeout1;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); //no window is opened
+
+		Map<String, String> defaults = null;
+		List<Map<String, String>> jobs = null;
+		try {
+			defaults = BatchRender.parse(args);
+			jobs = BatchRender.readJobs(defaults);
+		} catch (IOException e) {
+			System.err.println("Cannot read job file: " + e);
+			System.exit(2);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			jobs = null;
+		}
+		if(jobs == null || jobs.isEmpty() || !jobs.get(0).containsKey("obj")) {
+			System.err.println("Usage: RenderCoordinator obj=<.obj file> out=<.png or .pfm file> [port=7117 name=value ...]\n" +
+							   "       RenderCoordinator jobs=<job file> [port=7117 name=value ...]");
+			System.exit(2);
+		}
+		int port = Integer.parseInt(value(defaults, "port", "7117"));
+		RenderCoordinator coordinator = new RenderCoordinator(Integer.parseInt(value(defaults, "tile", "64")),
+															  Integer.parseInt(value(defaults, "timeout", "600000")),
+															  Long.parseLong(value(defaults, "connectTimeout", "600000")));
+		ServerSocket server = null;
+		try {
+			server = coordinator.listen(port);
+			int n = Integer.parseInt(value(defaults, "localWorkers", "0"));
+			coordinator.startLocalWorkers(n, server.getLocalPort(), Integer.parseInt(value(defaults, "workerThreads", "1")));
+		} catch (IOException e) {
+			System.err.println("Cannot start: " + e);
+			System.exit(2);
+		}
+
+		List<String> summary = new ArrayList<String>();
+		summary.add("job\toutput\trender ms\tsamples\tsamples/s\ttiles\trequeued");
+		int failed = 0;
+		for(int i = 0; i < jobs.size(); i++) {
+			Map<String, String> values = jobs.get(i);
+			System.out.println("Job " + (i + 1) + " of " + jobs.size() + ": " + values);
+			try {
+				long startTime = System.currentTimeMillis();
+				FrameBuffer image = coordinator.render(values);
+				long renderTime = System.currentTimeMillis() - startTime;
+				BatchRender.write(image, values.get("out"));
+				System.out.println("Wrote " + values.get("out") + ", " + renderTime + " ms");
+				summary.add((i + 1) + "\t" + values.get("out") + "\t" + renderTime + "\t" + coordinator.samples + "\t" +
+							coordinator.samples*1000/Math.max(1, renderTime) + "\t" + coordinator.tiles.length + "\t" + coordinator.requeued);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Job " + (i + 1) + " failed: " + e);
+				summary.add((i + 1) + "\t" + values.get("out") + "\tfailed: " + e);
+				failed++;
+			}
+		}
+		coordinator.finish();
+		try {
+			server.close();
+		} catch (IOException e) {
+			//not accepting any more
+		}
+
+		System.out.println();
+		for(String line : summary) System.out.println(line);
+		String summaryPath = defaults.get("summary");
+		if(summaryPath != null) {
+			try (PrintWriter out = new PrintWriter(summaryPath, "UTF-8")) {
+				for(String line : summary) out.println(line);
+			} catch (IOException e) {
+				System.err.println("Cannot write summary: " + e);
+			}
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+
+	private static String value(Map<String, String> values, String name, String defaultValue) {
+		return values.containsKey(name) ? values.get(name) : defaultValue;
+	}
+
+	/**
+	 * Accepts workers on a background thread, each served by a thread of its own
+	 *
+	 * @return	the listening socket
+	 */
+	ServerSocket listen(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port);
+		System.out.println("Waiting for workers on port " + server.getLocalPort());
+		Thread accept = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					final Socket socket;
+					try {
+						socket = server.accept();
+					} catch (IOException e) {
+						return; //closed
+					}
+					Thread worker = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}, "worker " + socket.getRemoteSocketAddress());
+					worker.setDaemon(true);
+					worker.start();
+				}
+			}
+		}, "accept");
+		accept.setDaemon(true);
+		accept.start();
+		return server;
+	}
+
+	/**
+	 * Starts worker processes on this machine, with the class path and JVM options of this one
+	 */
+	void startLocalWorkers(int n, int port, int threads) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if(!arg.startsWith("-agentlib") && !arg.startsWith("-javaagent")) command.add(arg); //no second debugger
+		}
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "RenderWorker",
+									 "coordinator=localhost:" + port, "threads=" + threads));
+		for(int i = 0; i < n; i++) {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			localWorkers.add(builder.start());
+		}
+	}
+
+	/**
+	 * Renders one job on the workers
+	 *
+	 * @param values	values of the job, see BatchRender
+	 * @return			frame buffer with all tiles
+	 * @throws IOException	if all local workers have stopped and no other worker is connected,
+	 * 						or no worker has been connected for connectTimeout ms
+	 */
+	synchronized FrameBuffer render(Map<String, String> values) throws IOException {
+		String out = values.get("out");
+		if(out == null || !(out.endsWith(".png") || out.endsWith(".pfm"))) {
+			throw new IllegalArgumentException("out must be a .png or .pfm file: " + out);
+		}
+		if(values.containsKey("budget") || values.containsKey("spp")) {
+			throw new IllegalArgumentException("progressive rendering(budget, spp) is not supported by RenderCoordinator");
+		}
+		Map<String, String> workerValues = new LinkedHashMap<String, String>(values);
+		for(String name : COORDINATOR_VALUES) workerValues.remove(name);
+		RenderJob job = new RenderJob(null);
+		World world = BatchRender.configure(workerValues, job); //also checks the values before they are sent
+		jobValues = workerValues;
+
+		//tiles row by row, handed out slowest first if the last job had the same size
+		List<int[]> list = new ArrayList<int[]>();
+		for(int y = 0; y < job.height; y += tileSize) {
+			for(int x = 0; x < job.width; x += tileSize) {
+				list.add(new int[]{x, y, Math.min(x + tileSize, job.width), Math.min(y + tileSize, job.height)});
+			}
+		}
+		tiles = list.toArray(new int[list.size()][]);
+		Integer[] order = new Integer[tiles.length];
+		for(int t = 0; t < tiles.length; t++) order[t] = t;
+		if(lastTraceTime != null && lastWidth == job.width && lastHeight == job.height) {
+			final long[] cost = lastTraceTime;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(cost[b], cost[a]);
+				}
+			});
+		}
+		queue = new ArrayDeque<Integer>(Arrays.asList(order));
+		done = new boolean[tiles.length];
+		running = new int[tiles.length];
+		startTime = new long[tiles.length];
+		traceTime = new long[tiles.length];
+		remaining = tiles.length;
+		samples = 0;
+		requeued = 0;
+		frameBuffer = world.createFrameBuffer(job);
+		jobNo++;
+		notifyAll();
+
+		try {
+			long noWorkersSince = 0; //0 : a worker is connected
+			while(remaining > 0) {
+				if(workers == 0 && !localWorkers.isEmpty() && !localWorkersAlive()) {
+					throw new IOException("all local workers have stopped");
+				}
+				long now = System.currentTimeMillis();
+				if(workers > 0) noWorkersSince = 0;
+				else if(noWorkersSince == 0) noWorkersSince = now;
+				else if(now - noWorkersSince >= connectTimeout) {
+					throw new IOException("no worker connected for " + connectTimeout + " ms");
+				}
+				wait(1000);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			queue.clear();
+			remaining = 0; //a failed job hands out no more tiles
+		}
+		lastTraceTime = traceTime;
+		lastWidth = job.width;
+		lastHeight = job.height;
+		return world.reconstruct(frameBuffer); //the filtered sums of all tiles are added up
+	}
+
+	private boolean localWorkersAlive() {
+		for(Process p : localWorkers) {
+			if(p.isAlive()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells the workers that there are no more jobs, and waits for them to be told
+	 * and for the local ones to exit
+	 */
+	void finish() {
+		synchronized(this) {
+			finished = true;
+			notifyAll();
+			long end = System.currentTimeMillis() + 10000;
+			while(workers > 0 && System.currentTimeMillis() < end) {
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		for(Process p : localWorkers) {
+			try {
+				p.waitFor();
+			} catch (InterruptedException e) {
+				p.destroy();
+			}
+		}
+	}
+
+	/**
+	 * A tile handed to a worker, with what is needed to send it
+	 */
+	private static class Assignment {
+		int job, tile;
+		int[] bounds; //xMin, yMin, xMax, yMax
+		Map<String, String> values; //of the job
+	}
+
+	/**
+	 * Waits for a tile to trace : the next one in the queue, or if it is empty,
+	 * a copy of the tile that has been traced for the longest time by a single worker
+	 *
+	 * @return	the tile, or null if there are no more jobs
+	 */
+	private synchronized Assignment nextTile() throws InterruptedException {
+		while(!finished) {
+			if(remaining > 0) {
+				Integer tile = queue.poll();
+				if(tile == null) {
+					for(int t = 0; t < tiles.length; t++) {
+						if(!done[t] && running[t] == 1 && (tile == null || startTime[t] < startTime[tile])) tile = t;
+					}
+				}
+				if(tile != null) {
+					running[tile]++;
+					if(startTime[tile] == 0) startTime[tile] = System.currentTimeMillis();
+					Assignment a = new Assignment();
+					a.job = jobNo;
+					a.tile = tile;
+					a.bounds = tiles[tile];
+					a.values = jobValues;
+					return a;
+				}
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * Copies the pixels of a traced tile into the frame buffer, unless a copy of it was faster
+	 */
+	private synchronized void finishTile(Assignment a, long time, long tileSamples, byte[] pixels) throws IOException {
+		if(a.job != jobNo || remaining == 0) return; //of a finished or failed job
+		int tile = a.tile;
+		running[tile]--;
+		if(done[tile]) return;
+		int[] r = tiles[tile];
+		frameBuffer.readTile(new DataInputStream(new ByteArrayInputStream(pixels)), r[0], r[1], r[2], r[3]);
+		done[tile] = true;
+		traceTime[tile] = time;
+		samples += tileSamples;
+		remaining--;
+		if(remaining == 0) notifyAll();
+	}
+
+	/**
+	 * Hands out a tile again, after its worker failed
+	 */
+	private synchronized void failTile(Assignment a) {
+		if(a.job != jobNo || remaining == 0) return;
+		int tile = a.tile;
+		running[tile]--;
+		if(!done[tile] && running[tile] == 0) {
+			queue.addFirst(tile);
+			requeued++;
+			notifyAll();
+		}
+	}
+
+	private synchronized void setWorkers(int change) {
+		workers += change;
+		notifyAll();
+	}
+
+	/**
+	 * Sends jobs and tiles to one worker and reads back the results, until there are no more jobs
+	 * or the worker fails
+	 */
+	private void serve(Socket socket) {
+		String name = String.valueOf(socket.getRemoteSocketAddress());
+		setWorkers(1);
+		Assignment a = null;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a RenderWorker of this version");
+			System.out.println("Worker " + name + " connected");
+
+			int sentJob = 0;
+			while((a = nextTile()) != null) {
+				if(a.job != sentJob) {
+					out.writeInt(JOB);
+					out.writeInt(a.job);
+					out.writeInt(a.values.size());
+					for(Map.Entry<String, String> e : a.values.entrySet()) {
+						out.writeUTF(e.getKey());
+						out.writeUTF(e.getValue());
+					}
+					sentJob = a.job;
+				}
+				int[] r = a.bounds;
+				out.writeInt(TILE);
+				out.writeInt(a.tile);
+				for(int v : r) out.writeInt(v);
+				out.flush();
+
+				int reply = in.readInt();
+				if(reply == ERROR) throw new IOException("worker error: " + in.readUTF());
+				if(reply != RESULT || in.readInt() != a.tile) throw new IOException("unexpected reply");
+				long time = in.readLong(), tileSamples = in.readLong();
+				int size = in.readInt(); //5 doubles per pixel, then the filtered sums, see FrameBuffer.writeTile()
+				if(size < 0 || size > 1 << 30) throw new IOException("bad tile size: " + size);
+				byte[] pixels = new byte[size];
+				in.readFully(pixels);
+				finishTile(a, time, tileSamples, pixels);
+				a = null;
+			}
+			out.writeInt(DONE);
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Worker " + name + " failed: " + e);
+			if(a != null) failTile(a);
+		} catch (InterruptedException e) {
+			if(a != null) failTile(a);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+			setWorkers(-1);
+		}
+	}
+}
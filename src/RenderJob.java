@@ -0,0 +1,94 @@
+/**
+ * Class RenderJob describes one image to render : the scene file, camera, image size,
+ * light, transform of the scene and super-sampling grid.
+ * A new job has the values of the interactive renderer, see World.initializeAndTrace().
+ *
+ * Values can be set by name, as in a job file of BatchRender, e.g. set("eye", "230,350,1100").
+ *
+ * @author Kirti M D
+ *
+ */
+public class RenderJob {
+
+	String objFilePath; //path to the .obj and .mtl file containing the 3D model
+	int width, height; //output image size
+	double[] eye; //camera position
+	double imagePlaneZ;
+	double[] lightPosition;
+	double lightLength, lightBreadth;
+	int lightGrid; //see LightSource
+	double[] scale, rotate, translate; //transform for the whole scene, rotation in degrees
+	int grid; //size of grid for super-sampling
+
+	RenderJob(String objFilePath1) {
+		objFilePath = objFilePath1;
+		width = 800;
+		height = 600;
+		eye = new double[]{230, 350, 1100};
+		imagePlaneZ = 500;
+		lightPosition = new double[]{0, 700, 200};
+		lightLength = 0.25f;
+		lightBreadth = 0.25f;
+		lightGrid = 2;
+		scale = new double[]{1, 1, 1};
+		rotate = new double[]{350, 285, 0};
+		translate = new double[]{0, 0, 0};
+		grid = 3;
+	}
+
+	/**
+	 * Sets a value by name
+	 *
+	 * @param name		obj, width, height, eye, plane, light, lightSize, lightGrid,
+	 * 					scale, rotate, translate or grid
+	 * @param value		a number, or x,y,z for a vector(one number for all three for scale),
+	 * 					or length,breadth for lightSize
+	 * @return			false if there is no value with that name
+	 * @throws NumberFormatException	if the value cannot be read
+	 */
+	public boolean set(String name, String value) {
+		switch(name) {
+			case "obj" : objFilePath = value; break;
+			case "width" : width = Integer.parseInt(value); break;
+			case "height" : height = Integer.parseInt(value); break;
+			case "eye" : eye = parseVector(value, 3); break;
+			case "plane" : imagePlaneZ = Double.parseDouble(value); break;
+			case "light" : lightPosition = parseVector(value, 3); break;
+			case "lightSize" :
+				double[] size = parseVector(value, 2);
+				lightLength = size[0]; lightBreadth = size[1];
+				break;
+			case "lightGrid" : lightGrid = Integer.parseInt(value); break;
+			case "scale" :
+				scale = value.contains(",") ? parseVector(value, 3) : new double[]{Double.parseDouble(value),
+													Double.parseDouble(value), Double.parseDouble(value)};
+				break;
+			case "rotate" : rotate = parseVector(value, 3); break;
+			case "translate" : translate = parseVector(value, 3); break;
+			case "grid" : grid = Integer.parseInt(value); break;
+			default : return false;
+		}
+		return true;
+	}
+
+	private static double[] parseVector(String value, int n) {
+		String[] parts = value.split(",");
+		if(parts.length != n) throw new NumberFormatException("expected " + n + " comma separated numbers: " + value);
+		double[] v = new double[n];
+		for(int i = 0; i < n; i++) v[i] = Double.parseDouble(parts[i].trim());
+		return v;
+	}
+
+	Camera createCamera() {
+		return new Camera(eye, imagePlaneZ, width, height);
+	}
+
+	LightSource createLight() {
+		return new LightSource(lightPosition, lightLength, lightBreadth, lightGrid);
+	}
+
+	Transform createTransform() {
+		return new Transform(scale[0], scale[1], scale[2], rotate[0], rotate[1], rotate[2],
+							 translate[0], translate[1], translate[2]);
+	}
+}
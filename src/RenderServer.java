@@ -0,0 +1,165 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Class RenderServer keeps scenes loaded and renders images for HTTP requests :
+ *
+ * 	java -cp ... RenderServer port=7118 memory=2048 requests=2 grid=2
+ * 	curl -o view.png "http://localhost:7118/render?obj=sponza.obj&eye=0,500,2500&rotate=10,20,0"
+ *
+ * A request gives the values of one job as for BatchRender, in the query and/or in the body
+ * of a POST(name=value pairs separated by & or white space). Values on the command line
+ * apply to every request, unless the request sets them. The image is returned as the response,
+ * png by default or pfm with format=pfm, and the headers X-Load-Time, X-Trace-Time(ms) and
+ * X-Samples give the timings. Bad values get status 400, with the reason as text.
+ * GET /scenes lists the loaded scenes.
+ *
+ * Scenes are kept in a SceneStore, so only the first request for a scene loads it.
+ * Several requests are rendered at the same time, sharing the scenes, which are only read.
+ *
+ * The server also takes :
+ * 	host		address to listen on, default 127.0.0.1(this machine only)
+ * 	port		TCP port, default 7118
+ * 	memory		MB of scenes to keep, the least recently used are dropped first, default 1024
+ * 	requests	no. of requests rendered at the same time, default 2.
+ * 				Each gets all processors / requests threads unless threads is given
+ *
+ * @author Kirti M D
+ *
+ */
+public class RenderServer {
+
+	private static final String[] SERVER_VALUES = {"host", "port", "memory", "requests"};
+
+	private Map<String, String> defaults; //values for every request
+	private SceneStore store;
+
+	RenderServer(Map<String, String> defaults1, SceneStore store1) {
+		defaults = defaults1;
+		store = store1;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); //no window is opened
+
+		Map<String, String> defaults = BatchRender.parse(args);
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(String name : SERVER_VALUES) {
+			if(defaults.containsKey(name)) options.put(name, defaults.remove(name));
+		}
+		String host = options.containsKey("host") ? options.get("host") : "127.0.0.1";
+		int port = options.containsKey("port") ? Integer.parseInt(options.get("port")) : 7118;
+		long memory = options.containsKey("memory") ? Long.parseLong(options.get("memory")) : 1024;
+		int requests = options.containsKey("requests") ? Math.max(1, Integer.parseInt(options.get("requests"))) : 2;
+		if(!defaults.containsKey("threads")) {
+			defaults.put("threads", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors()/requests)));
+		}
+
+		RenderServer server = new RenderServer(defaults, new SceneStore(memory*1024*1024));
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+			http.createContext("/render", server.new RenderHandler());
+			http.createContext("/scenes", server.new ScenesHandler());
+			http.setExecutor(Executors.newFixedThreadPool(requests)); //one thread per request being rendered
+			http.start();
+			System.out.println("Render server on http://" + host + ":" + http.getAddress().getPort() +
+							   "/render, " + requests + " request(s) at a time, " + memory + " MB of scenes");
+		} catch (IOException e) {
+			System.err.println("Cannot start server: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads name=value pairs separated by & or white space, URL encoded
+	 */
+	private static void parse(String s, Map<String, String> values) {
+		for(String pair : s.split("[&\\s]+")) {
+			if(pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			if(eq <= 0) throw new IllegalArgumentException("expected name=value: " + pair);
+			values.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					   URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * /render : renders the job of the request and returns the image
+	 */
+	private class RenderHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				Map<String, String> values = new LinkedHashMap<String, String>(defaults);
+				String query = exchange.getRequestURI().getRawQuery();
+				if(query != null) parse(query, values);
+				if(exchange.getRequestMethod().equals("POST")) {
+					try (InputStream in = exchange.getRequestBody()) {
+						parse(new String(in.readAllBytes(), StandardCharsets.UTF_8), values);
+					}
+				}
+				System.out.println("Request from " + exchange.getRemoteAddress() + ": " + values);
+
+				String format = values.containsKey("format") ? values.remove("format") : "png";
+				if(!format.equals("png") && !format.equals("pfm")) throw new IllegalArgumentException("format must be png or pfm: " + format);
+				RenderJob job = new RenderJob(null);
+				World world = BatchRender.configure(values, job);
+				if(!new File(job.objFilePath).isFile()) throw new IllegalArgumentException("no such obj file: " + job.objFilePath);
+
+				long startTime = System.currentTimeMillis();
+				Shape shape = store.get(world, job);
+				long loadTime = System.currentTimeMillis() - startTime; //includes waiting while another request loads it
+				FrameBuffer frameBuffer = world.render(job, shape);
+
+				ByteArrayOutputStream image = new ByteArrayOutputStream();
+				if(format.equals("pfm")) frameBuffer.writePFM(image);
+				else ImageIO.write(frameBuffer.toImage(), "png", image);
+				exchange.getResponseHeaders().set("X-Load-Time", Long.toString(loadTime));
+				exchange.getResponseHeaders().set("X-Trace-Time", Long.toString(world.getTraceTime()));
+				exchange.getResponseHeaders().set("X-Samples", Long.toString(world.getSamples()));
+				send(exchange, 200, format.equals("pfm") ? "image/x-portable-floatmap" : "image/png", image.toByteArray());
+			} catch (IllegalArgumentException e) { //includes NumberFormatException
+				send(exchange, 400, "text/plain; charset=utf-8", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (RuntimeException | IOException e) {
+				System.err.println("Request failed: " + e);
+				send(exchange, 500, "text/plain; charset=utf-8", (e + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * /scenes : lists the loaded scenes, see SceneStore.describe()
+	 */
+	private class ScenesHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			StringBuilder text = new StringBuilder();
+			for(String line : store.describe()) text.append(line).append('\n');
+			text.append(store.getMemoryUsed()/(1024*1024)).append(" MB used\n");
+			send(exchange, 200, "text/plain; charset=utf-8", text.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
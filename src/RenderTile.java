@@ -0,0 +1,177 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class RenderTile traces one rectangular block of pixels of the output image.
+ * Large tiles are split in half until they are small enough to be traced
+ * by a single thread, so that idle threads of the ForkJoinPool can steal
+ * the remaining halves.
+ *
+ * @author Kirti M D
+ *
+ */
+public class RenderTile extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int TILE_SIZE = 16; //tiles with fewer pixels per side are not split further
+
+	private World world;
+	private Camera camera;
+	private FrameBuffer frameBuffer;
+	private int g; //size of grid for super-sampling
+	private AdaptiveSampler sampler; //samples of each pixel to trace in this round, null : all g x g
+	private Shape shape;
+	private LightSource light;
+	private Transform transform;
+	private int xMin, yMin, xMax, yMax; //pixel range, max excluded
+
+	RenderTile(World world1, Camera camera1, FrameBuffer frameBuffer1, int g1, AdaptiveSampler sampler1,
+			   Shape shape1, LightSource light1, Transform transform1,
+			   int xMin1, int yMin1, int xMax1, int yMax1) {
+		world = world1;
+		camera = camera1;
+		frameBuffer = frameBuffer1;
+		g = g1;
+		sampler = sampler1;
+		shape = shape1;
+		light = light1;
+		transform = transform1;
+		xMin = xMin1;
+		yMin = yMin1;
+		xMax = xMax1;
+		yMax = yMax1;
+	}
+
+	@Override
+	protected void compute() {
+		int w = xMax - xMin, h = yMax - yMin;
+		if(w <= TILE_SIZE && h <= TILE_SIZE) {
+			trace();
+			return;
+		}
+
+		//split along the longer side
+		if(w >= h) {
+			int mid = xMin + w/2;
+			invokeAll(new RenderTile(world, camera, frameBuffer, g, sampler, shape, light, transform, xMin, yMin, mid, yMax),
+					  new RenderTile(world, camera, frameBuffer, g, sampler, shape, light, transform, mid, yMin, xMax, yMax));
+		} else {
+			int mid = yMin + h/2;
+			invokeAll(new RenderTile(world, camera, frameBuffer, g, sampler, shape, light, transform, xMin, yMin, xMax, mid),
+					  new RenderTile(world, camera, frameBuffer, g, sampler, shape, light, transform, xMin, mid, xMax, yMax));
+		}
+	}
+
+	/**
+	 * Traces all samples of this tile on the calling thread.
+	 * Each pixel is written only by the tile that owns it, so no synchronization
+	 * is needed on the frame buffer, except for the filtered sums, see FrameBuffer.
+	 */
+	public void trace() {
+		if(sampler != null) {
+			traceAdaptive();
+			return;
+		}
+		if(world.getPacketSize() > 1) {
+			tracePackets(world.getPacketSize());
+			return;
+		}
+		for(int x = xMin; x < xMax; x++) {
+			for(int y = yMin; y < yMax; y++) {
+				//all samples that lie inside one pixel
+				for(int k = 0; k < g; k++) {
+					for(int l = 0; l < g; l++) {
+						Ray ray = camera.generateRay(x*g + k, y*g + l, g, world.getSeed());
+						frameBuffer.addSample(x, y, ray.sampleX, ray.sampleY, world.traceRay(ray, shape, light, transform));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Traces the samples of this tile in square packets of neighbouring samples,
+	 * then adds them to the frame buffer in the same order as trace().
+	 *
+	 * @param packetSize	no. of samples per side of a packet
+	 */
+	private void tracePackets(int packetSize) {
+		int w = (xMax - xMin)*g, h = (yMax - yMin)*g; //samples in the tile
+		double[][] colors = new double[w*h][];
+		double[] sampleX = new double[w*h], sampleY = new double[w*h];
+		RayPacket packet = new RayPacket(packetSize*packetSize);
+		for(int j0 = 0; j0 < h; j0 += packetSize) {
+			for(int i0 = 0; i0 < w; i0 += packetSize) {
+				int iMax = Math.min(i0 + packetSize, w), jMax = Math.min(j0 + packetSize, h);
+				int n = 0;
+				for(int j = j0; j < jMax; j++) {
+					for(int i = i0; i < iMax; i++) {
+						Ray ray = camera.generateRay(xMin*g + i, yMin*g + j, g, world.getSeed());
+						sampleX[j*w + i] = ray.sampleX; sampleY[j*w + i] = ray.sampleY;
+						packet.rays[n++] = ray;
+					}
+				}
+				packet.n = n;
+				double[][] packetColors = world.tracePacket(packet, shape, light, transform);
+				n = 0;
+				for(int j = j0; j < jMax; j++) {
+					for(int i = i0; i < iMax; i++) {
+						colors[j*w + i] = packetColors[n++];
+					}
+				}
+			}
+		}
+
+		for(int x = xMin; x < xMax; x++) {
+			for(int y = yMin; y < yMax; y++) {
+				for(int k = 0; k < g; k++) {
+					for(int l = 0; l < g; l++) {
+						int i = ((y - yMin)*g + l)*w + (x - xMin)*g + k;
+						frameBuffer.addSample(x, y, sampleX[i], sampleY[i], colors[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Traces the samples chosen by the sampler for this round, pixel by pixel.
+	 * The samples of a pixel are neighbours, so they are traced in packets
+	 * of up to packetSize x packetSize samples.
+	 */
+	private void traceAdaptive() {
+		int packetSize = world.getPacketSize();
+		RayPacket packet = (packetSize > 1) ? new RayPacket(packetSize*packetSize) : null;
+		int[] pixelX = new int[packetSize*packetSize], pixelY = new int[packetSize*packetSize]; //pixel of each ray in the packet
+		int n = 0;
+		for(int x = xMin; x < xMax; x++) {
+			for(int y = yMin; y < yMax; y++) {
+				for(int s = sampler.getFrom(x, y); s < sampler.getTo(x, y); s++) {
+					Ray ray = sampler.generateRay(camera, x, y, s, world.getSeed());
+					if(packet == null) {
+						frameBuffer.addSample(x, y, ray.sampleX, ray.sampleY, world.traceRay(ray, shape, light, transform));
+						continue;
+					}
+					pixelX[n] = x; pixelY[n] = y;
+					packet.rays[n++] = ray;
+					if(n == packet.getCapacity()) {
+						tracePacket(packet, n, pixelX, pixelY);
+						n = 0;
+					}
+				}
+			}
+		}
+		if(n > 0) tracePacket(packet, n, pixelX, pixelY);
+	}
+
+	/**
+	 * Traces the first n rays of the packet and adds them to their pixels
+	 */
+	private void tracePacket(RayPacket packet, int n, int[] pixelX, int[] pixelY) {
+		packet.n = n;
+		double[][] colors = world.tracePacket(packet, shape, light, transform);
+		for(int i = 0; i < n; i++) {
+			frameBuffer.addSample(pixelX[i], pixelY[i], packet.rays[i].sampleX, packet.rays[i].sampleY, colors[i]);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class RenderWorker traces tiles for a RenderCoordinator, usually on another machine :
+ *
+ * 	java -cp ... RenderWorker coordinator=host:7117 threads=8
+ *
+ * It connects to the coordinator, then receives jobs and tiles of their images until
+ * the coordinator has no more work. For each tile it sends back the sums of the samples
+ * of every pixel. The scene of a job is loaded once, and kept for the next job if it is
+ * the same. Workers on one machine share its scene cache files, see SceneCache.
+ * Values given on the command line, e.g. threads, replace those of every job.
+ * If a job cannot be set up or traced here, e.g. its obj file is missing, the worker tells
+ * the coordinator, which hands the tile to another worker, and stops.
+ *
+ * @author Kirti M D
+ *
+ */
+public class RenderWorker {
+
+	private Map<String, String> options; //values of the command line, except coordinator
+
+	//current job
+	private World world;
+	private RenderJob job;
+	private Transform transform; //null if baked into the shape
+	private FrameBuffer frameBuffer;
+
+	//last loaded scene, see World.getSceneKey()
+	private String sceneKey;
+	private Shape shape;
+
+	RenderWorker(Map<String, String> options1) {
+		options = options1;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); //no window is opened
+
+		Map<String, String> options = BatchRender.parse(args);
+		String coordinator = options.remove("coordinator");
+		if(coordinator == null || coordinator.indexOf(':') < 0) {
+			System.err.println("Usage: RenderWorker coordinator=<host:port> [threads=n ...]");
+			System.exit(2);
+		}
+		String host = coordinator.substring(0, coordinator.lastIndexOf(':'));
+		int port = Integer.parseInt(coordinator.substring(coordinator.lastIndexOf(':') + 1));
+		try (Socket socket = new Socket(host, port)) {
+			new RenderWorker(options).serve(socket);
+		} catch (IOException e) {
+			System.err.println("Worker stopped: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Handles the messages of the coordinator until it sends DONE
+	 *
+	 * @throws IOException	also after an ERROR was sent, for a job that failed here
+	 */
+	void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.writeInt(RenderCoordinator.MAGIC);
+		out.writeInt(RenderCoordinator.VERSION);
+		out.flush();
+
+		while(true) {
+			int type = in.readInt();
+			if(type == RenderCoordinator.JOB) {
+				in.readInt(); //job no.
+				int n = in.readInt();
+				Map<String, String> values = new LinkedHashMap<String, String>();
+				for(int i = 0; i < n; i++) values.put(in.readUTF(), in.readUTF());
+				values.putAll(options);
+				try {
+					startJob(values);
+				} catch (RuntimeException e) { //bad values or scene, e.g. no obj file on this machine
+					sendError(out, "cannot start job: " + e);
+				}
+			} else if(type == RenderCoordinator.TILE) {
+				int tile = in.readInt();
+				int xMin = in.readInt(), yMin = in.readInt(), xMax = in.readInt(), yMax = in.readInt();
+				long startTime = System.currentTimeMillis();
+				long samples;
+				try {
+					frameBuffer.clearTile(xMin, yMin, xMax, yMax); //only the samples of this tile are sent
+					samples = world.trace(job, shape, transform, frameBuffer, xMin, yMin, xMax, yMax);
+				} catch (RuntimeException e) {
+					sendError(out, "cannot trace tile " + tile + ": " + e);
+					return; //not reached
+				}
+				long traceTime = System.currentTimeMillis() - startTime;
+
+				out.writeInt(RenderCoordinator.RESULT);
+				out.writeInt(tile);
+				out.writeLong(traceTime);
+				out.writeLong(samples);
+				ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+				frameBuffer.writeTile(new DataOutputStream(pixels), xMin, yMin, xMax, yMax);
+				out.writeInt(pixels.size());
+				pixels.writeTo(out);
+				out.flush();
+			} else if(type == RenderCoordinator.DONE) {
+				return;
+			} else {
+				throw new IOException("unknown message " + type);
+			}
+		}
+	}
+
+	/**
+	 * Tells the coordinator that this worker cannot go on
+	 *
+	 * @throws IOException	always, with the message
+	 */
+	private static void sendError(DataOutputStream out, String message) throws IOException {
+		out.writeInt(RenderCoordinator.ERROR);
+		out.writeUTF(message);
+		out.flush();
+		throw new IOException(message);
+	}
+
+	/**
+	 * Sets up a job, loading its scene unless it is the one of the last job
+	 */
+	private void startJob(Map<String, String> values) {
+		job = new RenderJob(null);
+		if(world != null) world.shutdown(); //threads of the last job
+		world = BatchRender.configure(values, job);
+		if(!new File(job.objFilePath).isFile()) throw new IllegalArgumentException("no such obj file: " + job.objFilePath);
+		Transform sceneTransform = job.createTransform();
+		boolean bake = world.isBaked(sceneTransform);
+		transform = bake ? null : sceneTransform;
+
+		String key = world.getSceneKey(job);
+		if(!key.equals(sceneKey)) {
+			shape = null; //can be collected while the next scene loads
+			shape = world.loadShape(job.objFilePath, sceneTransform, bake);
+			sceneKey = key;
+		}
+		frameBuffer = world.createFrameBuffer(job);
+	}
+}
@@ -0,0 +1,257 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Class SceneCache stores a loaded Shape in a binary file next to the obj file,
+ * so that later runs can skip parsing, normal interpolation and the kd-tree build.
+ * The file is named after the obj file, the tree builder and any baked transform,
+ * e.g. sponza.obj.sah.cache or sponza.obj.sah.1f2e3d4c5b6a7980.cache, so each of them
+ * keeps its own cache.
+ *
+ * The cache holds the mesh(with interpolated normals), the names of its materials
+ * and the flattened kd-tree. It is keyed by a SHA-256 hash of the obj and mtl file
+ * contents(every mtl file named by an mtllib line), by the tree builder and by the transform
+ * baked into the mesh. If any of them differs from the current run, the cache is stale and
+ * the scene is loaded from the obj file and cached again.
+ * Materials are read from the mtl files on every run, since they hold the texture images.
+ *
+ * File layout(big endian) :
+ * 		MAGIC, VERSION, builder, hash length, hash,
+ * 		Shape data(see Shape.write())
+ *
+ * @author Kirti M D
+ *
+ */
+public class SceneCache {
+
+	private static final int MAGIC = 0x4B44534E; //"KDSN"
+	private static final int VERSION = 5; //increase when the parser, builders or the layout change
+
+	private String objFilePath;
+	private ArrayList<String> mtlFilePaths; //in the order of the mtllib lines, as read by FileParser
+	private File cacheFile;
+	private int builder; //KDTree.MEDIAN or KDTree.SAH
+	private byte[] hash;
+
+	/**
+	 * Hashes the obj file and its mtl files.
+	 *
+	 * @param objFilePath1	path to the .obj file
+	 * @param builder1		KDTree.MEDIAN or KDTree.SAH
+	 * @param baked			transform applied to the mesh before the tree is built, 
+	 * 						null if the mesh is kept in object space
+	 */
+	SceneCache(String objFilePath1, int builder1, Transform baked) throws IOException {
+		objFilePath = objFilePath1;
+		builder = builder1;
+		MessageDigest digest = createDigest();
+		String cacheName = objFilePath + ((builder == KDTree.MEDIAN) ? ".median" : ".sah");
+		ByteBuffer matrix = null;
+		if(baked != null) {
+			matrix = ByteBuffer.allocate(8*12);
+			for(double d : baked.getToWorld().getEntries()) matrix.putDouble(d);
+			matrix.flip();
+			byte[] matrixHash = createDigest().digest(matrix.array());
+			StringBuilder hex = new StringBuilder();
+			for(int i = 0; i < 8; i++) hex.append(String.format("%02x", matrixHash[i]));
+			cacheName += "." + hex;
+		}
+		cacheFile = new File(cacheName + ".cache");
+
+		ArrayList<String> mtlFileNames = new ArrayList<String>();
+		hashFile(objFilePath, digest, mtlFileNames);
+		mtlFilePaths = new ArrayList<String>();
+		String folderPath = objFilePath.substring(0, objFilePath.lastIndexOf("/") + 1);
+		for(String mtlFileName : mtlFileNames) {
+			String mtlFilePath = folderPath + mtlFileName;
+			mtlFilePaths.add(mtlFilePath);
+			digest.update(mtlFileName.getBytes(StandardCharsets.UTF_8)); //a missing file still changes the hash
+			if(new File(mtlFilePath).exists()) hashFile(mtlFilePath, digest, null);
+		}
+		if(matrix != null) digest.update(matrix);
+		hash = digest.digest();
+	}
+
+	private static MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads the Shape from the cache file.
+	 *
+	 * @return		the Shape with its kd-tree, or null if there is no cache
+	 * 				or it does not match the current obj and mtl files
+	 */
+	public Shape load() {
+		if(!cacheFile.exists()) return null;
+
+		try(RandomAccessFile file = new RandomAccessFile(cacheFile, "r"); FileChannel channel = file.getChannel()) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != builder) {
+				System.out.println("Scene cache is stale, rebuilding");
+				return null;
+			}
+			byte[] cachedHash = new byte[in.getInt()];
+			in.get(cachedHash);
+			if(!Arrays.equals(cachedHash, hash)) {
+				System.out.println("Scene cache is stale, rebuilding");
+				return null;
+			}
+
+			ArrayList<Material> materials = new ArrayList<Material>();
+			FileParser parser = new FileParser();
+			for(String mtlFilePath : mtlFilePaths) {
+				ArrayList<Material> m = parser.parseMTLFile(mtlFilePath);
+				if(m != null) materials.addAll(m);
+			}
+			Shape shape = Shape.read(in, materials);
+			System.out.println("Loaded scene from " + cacheFile.getPath());
+			return shape;
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Could not read scene cache " + cacheFile.getPath() + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the Shape to the cache file. The file is written under a new temporary name
+	 * first, and then renamed in one step, so that an interrupted run does not leave a broken
+	 * cache behind, and runs saving the same cache at once(e.g. workers on one machine)
+	 * do not write into each other's files.
+	 *
+	 * @param shape		Shape after interpolateNormals() and createKDTree()
+	 */
+	public void save(Shape shape) {
+		File temp = null;
+		try {
+			File dir = cacheFile.getAbsoluteFile().getParentFile();
+			temp = Files.createTempFile(dir.toPath(), cacheFile.getName(), ".tmp").toFile();
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(builder);
+				out.writeInt(hash.length);
+				out.write(hash);
+				shape.write(out);
+			}
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE); //replaces any older cache
+			System.out.println("Saved scene to " + cacheFile.getPath());
+		} catch (IOException e) {
+			System.out.println("Could not write scene cache " + cacheFile.getPath() + ": " + e);
+			if(temp != null) temp.delete();
+		}
+	}
+
+	/**
+	 * Adds the contents of a file to digest, reading it through memory mapped blocks.
+	 *
+	 * @param mtlFileNames	if not null, receives the names of every mtllib line, as ObjChunk reads them
+	 */
+	private static void hashFile(String filePath, MessageDigest digest, ArrayList<String> mtlFileNames) throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(filePath, "r"); FileChannel channel = file.getChannel()) {
+			long size = channel.size();
+			boolean lineStart = true; //the block starts a line
+			for(long position = 0; position < size; position += 1 << 30) {
+				MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1 << 30, size - position));
+				if(mtlFileNames != null) findMtllibs(channel, position, block, lineStart, mtlFileNames);
+				lineStart = block.get(block.limit() - 1) == '\n';
+				digest.update(block);
+			}
+		}
+	}
+
+	/**
+	 * Adds the names of every line of block that starts with mtllib, after any spaces or tabs.
+	 * A line that continues in the next block is read from the channel.
+	 *
+	 * @param position		position of block in the file
+	 * @param lineStart		true if the first byte of block starts a line
+	 */
+	private static void findMtllibs(FileChannel channel, long position, ByteBuffer block, boolean lineStart,
+									ArrayList<String> mtlFileNames) throws IOException {
+		byte[] keyword = "mtllib".getBytes(StandardCharsets.US_ASCII);
+		int limit = block.limit();
+		for(int i = 0; i < limit; i++) {
+			if(i > 0 ? block.get(i - 1) != '\n' : !lineStart) continue;
+			int k = i;
+			while(k < limit && (block.get(k) == ' ' || block.get(k) == '\t')) k++;
+			int j = 0;
+			while(j < keyword.length && k + j < limit && block.get(k + j) == keyword[j]) j++;
+			if(j < keyword.length || k + j >= limit || (block.get(k + j) != ' ' && block.get(k + j) != '\t')) continue;
+
+			int first = k + j, end = first;
+			while(end < limit && block.get(end) != '\n' && block.get(end) != '\r') end++;
+			ByteArrayOutputStream name = new ByteArrayOutputStream();
+			for(int m = first; m < end; m++) name.write(block.get(m));
+			if(end == limit) { //the line continues in the next block
+				ByteBuffer rest = ByteBuffer.allocate(4096);
+				channel.read(rest, position + limit);
+				rest.flip();
+				while(rest.hasRemaining()) {
+					byte c = rest.get();
+					if(c == '\n' || c == '\r') break;
+					name.write(c);
+				}
+			}
+			ObjChunk.addMtllibs(new String(name.toByteArray(), StandardCharsets.UTF_8), mtlFileNames);
+			i = end;
+		}
+	}
+
+	//helpers used by Shape, Mesh and KDTree to write and read their arrays
+
+	static void writeDoubles(DataOutputStream out, double[] a) throws IOException {
+		out.writeInt(a.length);
+		for(double d : a) out.writeDouble(d);
+	}
+
+	static void writeInts(DataOutputStream out, int[] a) throws IOException {
+		out.writeInt(a.length);
+		for(int i : a) out.writeInt(i);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static double[] readDoubles(ByteBuffer in) {
+		double[] a = new double[in.getInt()];
+		in.asDoubleBuffer().get(a);
+		in.position(in.position() + 8*a.length);
+		return a;
+	}
+
+	static int[] readInts(ByteBuffer in) {
+		int[] a = new int[in.getInt()];
+		in.asIntBuffer().get(a);
+		in.position(in.position() + 4*a.length);
+		return a;
+	}
+
+	static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
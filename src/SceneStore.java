@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class SceneStore keeps loaded scenes in memory, so the next render of a scene
+ * does not parse it or build its kd-tree again. Scenes are found by World.getSceneKey().
+ *
+ * When the estimated size of all scenes(Shape.getMemorySize()) exceeds the memory budget,
+ * the least recently used scenes are dropped, but never the one just asked for.
+ * A dropped scene stays usable by the renders that already have it.
+ * A scene asked for by several threads at once is loaded by one of them, the others wait.
+ *
+ * @author Kirti M D
+ *
+ */
+public class SceneStore {
+
+	private long memoryBudget; //bytes
+	private long memoryUsed; //bytes, of the loaded scenes in scenes
+	private LinkedHashMap<String, Scene> scenes; //in access order, least recently used first
+
+	/**
+	 * A scene being loaded or loaded
+	 */
+	private static class Scene {
+		String key;
+		Shape shape; //null until loaded
+		long size; //bytes
+		long loadTime; //ms
+		int renders; //no. of times asked for
+	}
+
+	/**
+	 * @param memoryBudget1		bytes for all scenes, 0 : keep only the last one asked for
+	 */
+	SceneStore(long memoryBudget1) {
+		memoryBudget = Math.max(0, memoryBudget1);
+		memoryUsed = 0;
+		scenes = new LinkedHashMap<String, Scene>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the scene of a job, loading it if it is not in the store
+	 *
+	 * @param world		World with the options of the job, loads the scene
+	 * @param job		the scene file and transform
+	 * @return			the scene, to be used read only
+	 */
+	public Shape get(World world, RenderJob job) {
+		String key = world.getSceneKey(job);
+		Scene scene;
+		synchronized(this) {
+			scene = scenes.get(key);
+			if(scene == null) {
+				scene = new Scene();
+				scene.key = key;
+				scenes.put(key, scene);
+			}
+			scene.renders++;
+		}
+
+		synchronized(scene) {
+			if(scene.shape == null) {
+				long startTime = System.currentTimeMillis();
+				Transform transform = job.createTransform();
+				Shape shape;
+				try {
+					shape = world.loadShape(job.objFilePath, transform, world.isBaked(transform));
+				} catch (RuntimeException e) {
+					remove(scene);
+					throw e;
+				}
+				scene.loadTime = System.currentTimeMillis() - startTime;
+				scene.size = shape.getMemorySize();
+				scene.shape = shape;
+				synchronized(this) {
+					if(scenes.get(key) == scene) memoryUsed += scene.size;
+					evict(scene);
+				}
+			}
+			return scene.shape;
+		}
+	}
+
+	/**
+	 * Drops least recently used scenes until the loaded ones fit into the budget.
+	 * Scenes still being loaded are not counted and not dropped.
+	 *
+	 * @param keep	scene that is not dropped
+	 */
+	private synchronized void evict(Scene keep) {
+		Iterator<Scene> it = scenes.values().iterator();
+		while(memoryUsed > memoryBudget && it.hasNext()) {
+			Scene scene = it.next();
+			if(scene == keep || scene.shape == null) continue;
+			it.remove();
+			memoryUsed -= scene.size;
+			System.out.println("Dropped scene " + scene.key + ", " + scene.size/(1024*1024) + " MB");
+		}
+	}
+
+	private synchronized void remove(Scene scene) {
+		if(scenes.get(scene.key) == scene) scenes.remove(scene.key);
+	}
+
+	/**
+	 * @return	estimated bytes of the loaded scenes
+	 */
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	/**
+	 * @return	one line per scene, least recently used first : key, MB, load ms, renders
+	 */
+	public synchronized List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		for(Map.Entry<String, Scene> e : scenes.entrySet()) {
+			Scene scene = e.getValue();
+			lines.add(scene.key + "\t" + ((scene.shape == null) ? "loading" : scene.size/(1024*1024) + " MB\t" +
+					  scene.loadTime + " ms") + "\t" + scene.renders + " render(s)");
+		}
+		return lines;
+	}
+}
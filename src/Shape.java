@@ -1,4 +1,10 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The class Shape is the parent class for all scene objects
@@ -9,39 +15,63 @@ import java.util.ArrayList;
  */
 public class Shape {
 	
-	private ArrayList<Triangle> faces;
-	private ArrayList<Point> vertices; //keeping this list is useful while transforming	
+	private Mesh mesh; //vertices, normals, textures and materials of all faces
 	private int noOfSmoothingGroups;	
 	private KDTree kdtree;
 	
 	Shape() {
-		faces = new ArrayList<Triangle>();
-		vertices = new ArrayList<Point>();
-		kdtree = null;
-		noOfSmoothingGroups = 0;
+		this(new ArrayList<Point>(), new ArrayList<Triangle>(), 0);
 	}
 	
 	Shape(ArrayList<Point> vertices1, ArrayList<Triangle> faces1, int noOfSmoothingGroups1) {
-		vertices = vertices1;
-		faces = faces1;
+		mesh = new Mesh(faces1); //vertices1 not referenced by any face are left out
 		noOfSmoothingGroups = noOfSmoothingGroups1;
 		kdtree = null;
 	}
+	
+	Shape(Mesh mesh1, int noOfSmoothingGroups1) {
+		this(mesh1, null, noOfSmoothingGroups1);
+	}
+	
+	private Shape(Mesh mesh1, KDTree kdtree1, int noOfSmoothingGroups1) {
+		mesh = mesh1;
+		kdtree = kdtree1;
+		noOfSmoothingGroups = noOfSmoothingGroups1;
+	}
 
 	/**
-	 * Calls createTree() which will build the kd-tree from the list of triangles
+	 * Calls createTree() which will build the kd-tree from the mesh triangles
 	 */
 	public void createKDTree() {
+		createKDTree(KDTree.SAH);
+	}
+	
+	/**
+	 * Builds the kd-tree with the given builder
+	 * 
+	 * @param builder	KDTree.MEDIAN or KDTree.SAH
+	 */
+	public void createKDTree(int builder) {
 		kdtree = new KDTree();
 		Bounds rootBounds = getXYZBounds();
-		kdtree.createTree(faces, rootBounds);
+		kdtree.createTree(mesh, rootBounds, builder);
+	}
+	
+	/**
+	 * Makes the kd-tree test leaf triangles with SIMD instructions, if the Vector API is available.
+	 * Must be called after createKDTree().
+	 * 
+	 * @return	true if the vector kernel is used
+	 */
+	public boolean useVectorKernel() {
+		return kdtree.useVectorKernel();
 	}
 	
 	/**
 	 * Calls traverseTree() which will find ray-shape intersection by traversing the kd-tree
 	 * @param ray
 	 * @param light
-	 * @param transform
+	 * @param transform		transformation for the shape, null if it is in world space
 	 * @return
 	 */
 	public Point intersectedByRay(Ray ray, LightSource light, Transform transform) {
@@ -50,70 +80,124 @@ public class Shape {
 	
 	
 	/**
-	 * Applies given transform to all vertices
+	 * Calls traversePacket() which will find the intersections of a packet of rays
+	 * by traversing the kd-tree with all rays together
+	 * 
+	 * @param packet		neighbouring rays, e.g. camera rays of nearby samples
+	 * @param light
+	 * @param transform		transformation for the shape, null if it is in world space
+	 * @return				intersection point for each ray, null where nothing was hit
+	 */
+	public Point[] intersectedByPacket(RayPacket packet, LightSource light, Transform transform) {
+		return kdtree.traversePacket(packet, light, transform);
+	}
+	
+	/**
+	 * Calls occluded() which will find out if any triangle lies between 
+	 * origin and target. Used for shadow rays.
+	 * 
+	 * @param origin		start of the segment
+	 * @param target		end of the segment, e.g. a point on the light
+	 * @param transform		transformation for the shape, null if it is in world space
+	 * @return				true if the segment is blocked
+	 */
+	public boolean occluded(Point origin, Point target, Transform transform) {
+		return kdtree.occluded(origin, target, transform);
+	}
+	
+	/**
+	 * Applies given transform to all vertices and normals, so that the shape 
+	 * can be traced in world space without transforming every ray.
+	 * Must be called before createKDTree().
 	 * 
 	 * @param t 	Transform object 
 	 */
 	public void transformVertices(Transform t) {	
-		for(Point p : vertices)
-			t.transformPoint(p);
+		mesh.transform(t.getToWorld());
 	}
 	
 	/**
 	 * Interpolate surface normals of all triangles
 	 * Helps the surface appear more smooth 
+	 * 
+	 * The normal of a vertex in a smoothing group is the average of the normals of the
+	 * triangles of that group using it. A vertex used by several groups is first split into
+	 * one vertex per group, see Mesh.splitVerticesBySmoothingGroup(), so each group gets its own.
+	 * Triangles outside any group keep the normals of the file, or their face normal.
+	 * The triangles are sorted by group, and the groups are summed in parallel. As each
+	 * vertex is then in one group only, the groups never write the same entries.
 	 */
 	public void interpolateNormals() {
-		//System.out.println("noOfSmoothingGroups: "+ noOfSmoothingGroups);
+		if(noOfSmoothingGroups <= 0) return;
+		mesh.splitVerticesBySmoothingGroup();
+		int noOfGroups = noOfSmoothingGroups + 1; //groups 0 to noOfSmoothingGroups
 		
-		for(int s = 0; s < noOfSmoothingGroups; s++) {
-			//find all triangles connected to a vertex, add them and normalise
-			ArrayList<Point> points = new ArrayList<Point>();
-			ArrayList<Integer> count = new ArrayList<Integer>(); //number of triangles having a vertex v
-			ArrayList<double[]> sumOfNormals = new ArrayList<double[]>();
-			for(int i = 0; i < faces.size(); i++) {
-				Triangle tri = faces.get(i);
-				if(tri.smoothingGroup == s) {
-					Point[] vertices = {tri.p0, tri.p1, tri.p2};
-					for(Point v : vertices) {
-						if(points.contains(v)) {
-							int k = points.indexOf(v);
-							count.set(k, count.get(k) + 1);
-							double[] norm = sumOfNormals.get(k);
-							norm[0] += tri.normal[0]; norm[1] += tri.normal[1]; norm[2] += tri.normal[2];
-							sumOfNormals.set(k, norm);
-						}
-						else {
-							points.add(v);
-							count.add(1);
-							sumOfNormals.add(tri.normal);
-						}
-					}
-				}
-			}
-			ArrayList<double[]> newNormals = new ArrayList<double[]>();
-			
-			for(int i = 0; i < sumOfNormals.size(); i++) {
-				double[] norm = sumOfNormals.get(i);
-				int k = count.get(i);
-				double[] newNorm = {(double)norm[0]/k, (double)norm[1]/k, (double)norm[2]/k};
-				newNormals.add(newNorm);
+		int[] groupStart = new int[noOfGroups + 1];
+		for(int i = 0; i < mesh.noOfTriangles; i++) {
+			int s = mesh.smoothingGroups[i];
+			if(s >= 0 && s < noOfGroups) groupStart[s + 1]++;
+		}
+		
+		//triangles of group s are groupTriangles[groupStart[s]] to groupTriangles[groupStart[s + 1] - 1]
+		for(int s = 0; s < noOfGroups; s++) groupStart[s + 1] += groupStart[s];
+		int[] groupTriangles = new int[groupStart[noOfGroups]];
+		int[] next = Arrays.copyOf(groupStart, noOfGroups);
+		for(int i = 0; i < mesh.noOfTriangles; i++) {
+			int s = mesh.smoothingGroups[i];
+			if(s >= 0 && s < noOfGroups) groupTriangles[next[s]++] = i;
+		}
+		
+		double[] sumOfNormals = new double[3*mesh.noOfVertices];
+		int[] count = new int[mesh.noOfVertices]; //number of triangles added to a vertex
+		ForkJoinPool.commonPool().invoke(new SumNormals(mesh, groupStart, groupTriangles, 
+														sumOfNormals, count, 0, noOfGroups));
+		
+		for(int v = 0; v < mesh.noOfVertices; v++) {
+			int k = count[v];
+			if(k > 0) mesh.setNormal(v, sumOfNormals[3*v]/k, sumOfNormals[3*v + 1]/k, sumOfNormals[3*v + 2]/k);
+		}
+	}
+	
+	/**
+	 * Adds the face normals of the triangles in smoothing groups sMin to sMax - 1
+	 * to their vertices.
+	 */
+	private static class SumNormals extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private static final int TRIANGLES = 4096; //ranges with fewer triangles are not split further
+		
+		private Mesh mesh;
+		private int[] groupStart, groupTriangles, count;
+		private double[] sumOfNormals;
+		private int sMin, sMax;
+		
+		SumNormals(Mesh mesh1, int[] groupStart1, int[] groupTriangles1, 
+				   double[] sumOfNormals1, int[] count1, int sMin1, int sMax1) {
+			mesh = mesh1;
+			groupStart = groupStart1; groupTriangles = groupTriangles1;
+			sumOfNormals = sumOfNormals1; count = count1;
+			sMin = sMin1; sMax = sMax1;
+		}
+		
+		@Override
+		protected void compute() {
+			if(sMax - sMin > 1 && groupStart[sMax] - groupStart[sMin] > TRIANGLES) {
+				int mid = (sMin + sMax)/2;
+				invokeAll(new SumNormals(mesh, groupStart, groupTriangles, sumOfNormals, count, sMin, mid),
+						  new SumNormals(mesh, groupStart, groupTriangles, sumOfNormals, count, mid, sMax));
+				return;
 			}
-			
-			for(int i = 0; i < faces.size(); i++) {
-				if(faces.get(i).smoothingGroup == s) {
-					int j = points.indexOf(faces.get(i).p0);
-					double[] norm = newNormals.get(j); 
-					faces.get(i).p0.setNormal(norm[0], norm[1], norm[2]);
-					
-					j = points.indexOf(faces.get(i).p1);
-					norm = newNormals.get(j); 
-					faces.get(i).p1.setNormal(norm[0], norm[1], norm[2]);
-					
-					j = points.indexOf(faces.get(i).p2);
-					norm = newNormals.get(j); 
-					faces.get(i).p2.setNormal(norm[0], norm[1], norm[2]);
-					
+			for(int s = sMin; s < sMax; s++) {
+				for(int k = groupStart[s]; k < groupStart[s + 1]; k++) {
+					int i = groupTriangles[k];
+					double nx = mesh.faceNormals[3*i], ny = mesh.faceNormals[3*i + 1], nz = mesh.faceNormals[3*i + 2];
+					for(int c = 0; c < 3; c++) {
+						int v = mesh.vertexIndices[3*i + c];
+						sumOfNormals[3*v] += nx; sumOfNormals[3*v + 1] += ny; sumOfNormals[3*v + 2] += nz;
+						count[v]++;
+					}
 				}
 			}
 		}
@@ -127,20 +211,12 @@ public class Shape {
 					  lowestY = Double.MAX_VALUE, highestY = -Double.MAX_VALUE, 
 					  lowestZ = Double.MAX_VALUE, highestZ = -Double.MAX_VALUE; 
 				 
-		  for(Triangle t : faces) { 
-			  
-			  if(t.p0.x < lowestX) lowestX = t.p0.x;  if(t.p0.x > highestX) highestX = t.p0.x;  
-			  if(t.p1.x < lowestX) lowestX = t.p1.x;  if(t.p1.x > highestX) highestX = t.p1.x;  
-			  if(t.p2.x < lowestX) lowestX = t.p2.x;  if(t.p2.x > highestX) highestX = t.p2.x;  
-			  
-			  if(t.p0.y < lowestY) lowestY = t.p0.y;  if(t.p0.y > highestY) highestY = t.p0.y;  
-			  if(t.p1.y < lowestY) lowestY = t.p1.y;  if(t.p1.y > highestY) highestY = t.p1.y;  
-			  if(t.p2.y < lowestY) lowestY = t.p2.y;  if(t.p2.y > highestY) highestY = t.p2.y;  
-			  
-			  if(t.p0.z < lowestZ) lowestZ = t.p0.z;  if(t.p0.z > highestZ) highestZ = t.p0.z;  
-			  if(t.p1.z < lowestZ) lowestZ = t.p1.z;  if(t.p1.z > highestZ) highestZ = t.p1.z;  
-			  if(t.p2.z < lowestZ) lowestZ = t.p2.z;  if(t.p2.z > highestZ) highestZ = t.p2.z;  
-			  
+		  double[] pos = mesh.positions;
+		  for(int v = 0; v < mesh.noOfVertices; v++) { 
+			  double x = pos[3*v], y = pos[3*v + 1], z = pos[3*v + 2];
+			  if(x < lowestX) lowestX = x;  if(x > highestX) highestX = x;  
+			  if(y < lowestY) lowestY = y;  if(y > highestY) highestY = y;  
+			  if(z < lowestZ) lowestZ = z;  if(z > highestZ) highestZ = z;  
 		  }
 		  
 		  //to avoid a flat box, i.e. if the min and max for x, y or z are the same value
@@ -154,7 +230,18 @@ public class Shape {
 	
 	
 	public int getNoOfFaces() {
-		return faces.size();
+		return mesh.noOfTriangles;
+	}
+	
+	Mesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * @return	estimated bytes of the mesh, kd-tree and textures of the scene
+	 */
+	public long getMemorySize() {
+		return mesh.getMemorySize() + ((kdtree != null) ? kdtree.getMemorySize() : 0);
 	}
 	
 	/**
@@ -163,8 +250,29 @@ public class Shape {
 	 * @param mat
 	 */
 	public void setMaterial(Material mat) {
-		for(Triangle tri : faces) {
-			tri.material = mat;
-		}
+		mesh.setMaterial(mat);
+	}
+	
+	/**
+	 * Writes the mesh and the kd-tree to the scene cache.
+	 * Must be called after createKDTree().
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(noOfSmoothingGroups);
+		mesh.write(out);
+		kdtree.write(out);
+	}
+	
+	/**
+	 * Reads a Shape written by write(), with its kd-tree ready for tracing.
+	 * 
+	 * @param in			scene cache, positioned at the shape
+	 * @param materials		materials read from the mtl file
+	 */
+	static Shape read(ByteBuffer in, ArrayList<Material> materials) {
+		int noOfSmoothingGroups = in.getInt();
+		Mesh mesh = Mesh.read(in, materials);
+		KDTree kdtree = KDTree.read(in, mesh);
+		return new Shape(mesh, kdtree, noOfSmoothingGroups);
 	}
 }
@@ -7,6 +7,7 @@
  */
 public class Texture {
 	double u, v;
+	double footprint; //size of the area seen by the ray in (u, v) units, used to pick a mip level. 0 : a point
 	
 	
 	Texture(double u1, double v1) {		
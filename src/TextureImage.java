@@ -0,0 +1,156 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class TextureImage stores the pixels of a texture image as packed RGB ints,
+ * read once from the BufferedImage when the material is loaded.
+ * Lookups are constant time and allocate nothing.
+ *
+ * It also keeps a mip pyramid : level 0 is the image, and each further level
+ * is half the size of the one before, every texel being the average of four.
+ * Lookups pick the levels whose texels are about as large as the area covered
+ * by the sample, so distant surfaces read from small levels.
+ *
+ * @author Kirti M D
+ *
+ */
+public class TextureImage {
+
+	int width, height;
+	int[] texels; //0xRRGGBB, row by row from the top of the image
+
+	//mip pyramid, levels[0] == texels
+	private int[][] levels;
+	private int[] levelWidth, levelHeight;
+
+	TextureImage(BufferedImage image) {
+		width = image.getWidth();
+		height = image.getHeight();
+		texels = image.getRGB(0, 0, width, height, null, 0, width);
+		buildPyramid();
+	}
+
+	/**
+	 * @return	bytes of the texels of all levels
+	 */
+	long getMemorySize() {
+		long size = 0;
+		for(int[] level : levels) size += 4L*level.length;
+		return size;
+	}
+
+	/**
+	 * Creates the levels down to 1 x 1. The rows of each level are computed in parallel.
+	 */
+	private void buildPyramid() {
+		int noOfLevels = 1;
+		for(int size = Math.max(width, height); size > 1; size /= 2) noOfLevels++;
+		levels = new int[noOfLevels][];
+		levelWidth = new int[noOfLevels];
+		levelHeight = new int[noOfLevels];
+		levels[0] = texels; levelWidth[0] = width; levelHeight[0] = height;
+
+		for(int l = 1; l < noOfLevels; l++) {
+			int w = Math.max(1, levelWidth[l - 1]/2), h = Math.max(1, levelHeight[l - 1]/2);
+			levels[l] = new int[w*h];
+			levelWidth[l] = w; levelHeight[l] = h;
+			ForkJoinPool.commonPool().invoke(new Downsample(levels[l - 1], levelWidth[l - 1], levelHeight[l - 1], levels[l], w, 0, h));
+		}
+	}
+
+	/**
+	 * Finds the color at (u, v) using bilinear interpolation of the four nearest texels,
+	 * on the two pyramid levels nearest to the footprint, blended by their distance to it.
+	 * u and v are flipped(1 - u, 1 - v) and repeated outside 0 to 1.
+	 *
+	 * @param u, v			texture co-ordinates
+	 * @param footprint		size of the sampled area in texture co-ordinates, 0 for a point
+	 * @param color			receives the RGB values, 0 to 1
+	 */
+	public void sample(double u, double v, double footprint, double[] color) {
+		//u and v values range from 0 to 1
+		//we need to convert them to the image indices (0 to image row or column)
+		u = Math.abs((1 - u) - (long)(1 - u)); //same as (1 - u) % 1, but much faster
+		v = Math.abs((1 - v) - (long)(1 - v));
+
+		color[0] = 0; color[1] = 0; color[2] = 0;
+		double level = (footprint > 0) ? Math.log(footprint*Math.max(width, height))/Math.log(2) : 0;
+		if(level <= 0) {
+			sampleLevel(0, u, v, 1, color);
+		} else if(level >= levels.length - 1) {
+			sampleLevel(levels.length - 1, u, v, 1, color);
+		} else {
+			int l = (int)level;
+			double f = level - l;
+			sampleLevel(l, u, v, 1 - f, color);
+			sampleLevel(l + 1, u, v, f, color);
+		}
+	}
+
+	/**
+	 * Adds weight times the bilinear color at (u, v) of the level to color
+	 */
+	private void sampleLevel(int level, double u, double v, double weight, double[] color) {
+		int w = levelWidth[level], h = levelHeight[level];
+		int[] t = levels[level];
+		double x = u*(w - 1), y = v*(h - 1);
+		int i0 = (int)x, j0 = (int)y;
+		int i1 = Math.min(i0 + 1, w - 1), j1 = Math.min(j0 + 1, h - 1);
+		double deltaU = x - i0, deltaV = y - j0;
+
+		int c0 = t[j0*w + i0], c1 = t[j1*w + i0],
+			c2 = t[j0*w + i1], c3 = t[j1*w + i1];
+		double w0 = (1 - deltaU)*(1 - deltaV), w1 = (1 - deltaU)*deltaV,
+			   w2 = deltaU*(1 - deltaV), w3 = deltaU*deltaV;
+		for(int k = 0; k < 3; k++) {
+			int shift = 16 - 8*k; //red, green, blue
+			color[k] += weight*(w0*((c0 >> shift) & 0xff) + w1*((c1 >> shift) & 0xff)
+							  + w2*((c2 >> shift) & 0xff) + w3*((c3 >> shift) & 0xff))/255;
+		}
+	}
+
+	/**
+	 * Computes rows yMin to yMax - 1 of a pyramid level from the level above it.
+	 * Each texel is the average of the 2 x 2 texels it covers.
+	 */
+	private static class Downsample extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int ROWS = 32; //blocks with fewer rows are not split further
+
+		private int[] src, dst;
+		private int srcWidth, srcHeight, dstWidth, yMin, yMax;
+
+		Downsample(int[] src1, int srcWidth1, int srcHeight1, int[] dst1, int dstWidth1, int yMin1, int yMax1) {
+			src = src1; srcWidth = srcWidth1; srcHeight = srcHeight1;
+			dst = dst1; dstWidth = dstWidth1;
+			yMin = yMin1; yMax = yMax1;
+		}
+
+		@Override
+		protected void compute() {
+			if(yMax - yMin > ROWS) {
+				int mid = (yMin + yMax)/2;
+				invokeAll(new Downsample(src, srcWidth, srcHeight, dst, dstWidth, yMin, mid),
+						  new Downsample(src, srcWidth, srcHeight, dst, dstWidth, mid, yMax));
+				return;
+			}
+			for(int j = yMin; j < yMax; j++) {
+				int j0 = Math.min(2*j, srcHeight - 1), j1 = Math.min(2*j + 1, srcHeight - 1);
+				for(int i = 0; i < dstWidth; i++) {
+					int i0 = Math.min(2*i, srcWidth - 1), i1 = Math.min(2*i + 1, srcWidth - 1);
+					int c0 = src[j0*srcWidth + i0], c1 = src[j0*srcWidth + i1],
+						c2 = src[j1*srcWidth + i0], c3 = src[j1*srcWidth + i1];
+					int rgb = 0;
+					for(int shift = 16; shift >= 0; shift -= 8) {
+						int sum = ((c0 >> shift) & 0xff) + ((c1 >> shift) & 0xff) + ((c2 >> shift) & 0xff) + ((c3 >> shift) & 0xff);
+						rgb |= ((sum + 2)/4) << shift;
+					}
+					dst[j*dstWidth + i] = rgb;
+				}
+			}
+		}
+	}
+}
@@ -3,6 +3,8 @@ import Jama.Matrix;
 /**
  * Class Transform contains the transformation matrices: scale, rotate and translate.
  * Transformations on vertices, triangles, rays, bounds are performed here.
+ * The matrices are built with Jama once, and applied through Affine copies of them,
+ * which allocate nothing.
  * 
  * @author Kirti M D
  *
@@ -18,6 +20,8 @@ public class Transform {
 								  // SRT : product of all three
 	private Matrix invS, invR, invTR, invSRT; //inverse 
 	
+	private Affine toWorld, toObject; //SRT and invSRT
+	
 	Transform(double sx1, double sy1, double sz1, 
 			  double degx, double degy, double degz, 
 			  double tx1, double ty1, double tz1) {
@@ -55,7 +59,9 @@ public class Transform {
 		invSRT = invS.times(invR).times(invTR);
 		
 		SRT = invSRT.inverse();
-
+		
+		toWorld = new Affine(SRT.getArray());
+		toObject = new Affine(invSRT.getArray());
 	}
 	
 	//default transformation
@@ -69,36 +75,50 @@ public class Transform {
 	public Ray transformRay(Ray ray) {
 		double[] origin = ray.getOrigin();
 		double[] dir = ray.getDirection();
-		double x0 = origin[0], y0 = origin[1], z0 = origin[2], dx = dir[0], dy = dir[1], dz = dir[2];
-		Matrix O = new Matrix(new double[][]{{x0},{y0},{z0},{1}});
-		Matrix D = new Matrix(new double[][]{{dx},{dy},{dz},{0}});
+		double[] newO = new double[3], newD = new double[3];
+		toObject.transformPoint(origin[0], origin[1], origin[2], newO);
+		toObject.transformVector(dir[0], dir[1], dir[2], newD);
 		
-		Matrix newO = invSRT.times(O);
-		Matrix newD = invSRT.times(D);
-		
-		Ray newRay = new Ray(newO.get(0,0), newO.get(1,0), newO.get(2,0),
-						newD.get(0,0), newD.get(1,0), newD.get(2,0));
+		Ray newRay = new Ray(newO[0], newO[1], newO[2], newD[0], newD[1], newD[2]);
+		newRay.spread = ray.spread;
 		
 		return newRay;	
 	}
 	
+	//apply transformation to point and its normal, i.e. from object to world space
 	public Point transformPoint(Point p) {
 		if(p == null) return null;
 		
-		Matrix P = new Matrix(new double[][]{{p.x},{p.y},{p.z},{1}});
-		Matrix P1 = SRT.times(P);
-		Point newPt = new Point(P1.get(0,0), P1.get(1,0), P1.get(2,0));
+		double[] p1 = new double[3];
+		toWorld.transformPoint(p.x, p.y, p.z, p1);
+		Point newPt = new Point(p1[0], p1[1], p1[2]);
 		
 		if(p.normal != null) {
-		Matrix N = new Matrix(new double[][]{{p.normal[0]},{p.normal[1]},{p.normal[2]},{1}});
-		Matrix transposeInvT = invSRT.transpose();
-		Matrix N1 = transposeInvT.times(N);
-		newPt.setNormal(N1.get(0,0), N1.get(1,0), N1.get(2,0));
+		double[] n1 = new double[3];
+		toWorld.transformNormal(p.normal[0], p.normal[1], p.normal[2], n1);
+		newPt.setNormal(n1[0], n1[1], n1[2]);
 		}
 		if(p.color != null) newPt.color = p.color;
+		newPt.tex = p.tex;
 		return newPt;
 	}
 	
+	//apply inverse transformation to point, i.e. from world to object space
+	public Point inverseTransformPoint(Point p) {
+		if(p == null) return null;
+		
+		double[] p1 = new double[3];
+		toObject.transformPoint(p.x, p.y, p.z, p1);
+		return new Point(p1[0], p1[1], p1[2]);
+	}
+	
+	/**
+	 * @return	the transformation from object to world space
+	 */
+	public Affine getToWorld() {
+		return toWorld;
+	}
+	
 	public Bounds transformBounds(Bounds b) {
 		
 		Point min1 = new Point(b.xMin, b.yMin, b.zMin);
@@ -30,7 +30,6 @@ public class Triangle {
 		this(pt0, pt1, pt2);
 
 		shapeName = n;
-		material = new Material();
 		
 		t0 = tex0; t1 = tex1; t2 = tex2;
 		
@@ -94,7 +93,7 @@ public class Triangle {
 		}
 		
 		
-		material = new Material();
+		material = Material.DEFAULT;
 		//default color
 		color = new double[]{2, 0, 0};
 		
@@ -1,10 +1,11 @@
 
-import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -22,12 +23,47 @@ import javax.swing.JPanel;
  */
 public class World {
 
+	private int threads; //number of render threads, 1 : trace serially
+	private ForkJoinPool pool; //threads of every trace and reconstruct, created on first use, see getPool()
+	private long seed; //seed for the jitter, same seed gives the same image
+	private int treeBuilder; //KDTree.MEDIAN or KDTree.SAH
+	private boolean sceneCache; //load and save the parsed scene and kd-tree, see SceneCache
+	private boolean bakeTransform; //apply any scene transform to the mesh once, instead of to every ray
+	private int packetSize; //camera rays are traced in packets of packetSize x packetSize samples, 1 : one at a time
+	private boolean vectorKernel; //test leaf triangles with the Vector API, see VectorLeafKernel
+	private double adaptiveThreshold; //> 0 : adaptive super-sampling, see AdaptiveSampler, 0 : g x g samples per pixel
+	private boolean progressive; //trace in passes and show the image after each, see traceProgressive()
+	private long timeBudget; //ms, progressive passes that would end later are not started, 0 : no limit
+	private int targetSamples; //samples per pixel of a progressive render, 0 : g x g
+	private FrameListener frameListener; //receives the image after every progressive pass, may be null
+	private ReconstructionFilter filter; //weighs each sample for the pixels around it, see FrameBuffer.setFilter()
+	private long loadTime, traceTime, samples; //of the last render(), times in ms
+	
+	World() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	World(int threads1) {
+		threads = Math.max(1, threads1);
+		seed = 1;
+		treeBuilder = KDTree.SAH;
+		sceneCache = true;
+		bakeTransform = false;
+		packetSize = 4;
+		vectorKernel = false;
+		adaptiveThreshold = 0;
+		progressive = false;
+		timeBudget = 0;
+		targetSamples = 0;
+		frameListener = null;
+		filter = new ReconstructionFilter(ReconstructionFilter.BOX, 0);
+	}
 	
 	/**
 	 * Prompts user for path, and forwards the path and grid size
 	 *  to initializeAndTrace()
 	 *  
-	 * @param args    command-line arguments(ignored)
+	 * @param args    optional number of render threads(default : all cores)
 	 */
 	public static void main(String[] args) {
 		
@@ -35,7 +71,7 @@ public class World {
 		System.out.println("Enter path to the .obj file: ");
 		String objFilePath = sc.nextLine(); //FileNotFoundEx handled in FileParser
 				
-		World w = new World();
+		World w = (args.length > 0) ? new World(Integer.parseInt(args[0])) : new World();
 		int grid = 3;//super-sampling grid size		
 		w.initializeAndTrace(grid, objFilePath);
 		sc.close();
@@ -52,224 +88,16 @@ public class World {
 		
 		long startTime = System.currentTimeMillis();
 		
-		int width = 800, height = 600; //output image size
-		
-		//set camera position	
-		double cx = 230, cy = 350, cz = 1100; 
-		//double cx = -200, cy = 550, cz = 1200;//for soft shadows output
-		
-		double[] eye = new double[]{cx, cy, cz};
-		
-		double imagePlaneZ = 500; 
-		
-		double imagePlaneHt = height;
-		double imagePlaneWidth = width;
-		
-		
-		double imagePlaneXMin = cx - imagePlaneWidth*0.5d, imagePlaneXMax = cx + imagePlaneWidth*0.5d,
-			   imagePlaneYMin = cy - imagePlaneHt*0.5d, imagePlaneYMax = cy + imagePlaneHt*0.5d;
-		
-
-		double[] lightPosition = new double[]{00,700,200};//{-100f, 700, 200f };
-																
-		double length = 0.25f, breadth = 0.25f;
-		LightSource light = new LightSource(lightPosition, length, breadth, 2);
-		
-		double sc = 1;
-		//transform for the whole scene	
-		Transform transform = new Transform(sc, sc, sc, //scale
-											350, 285, 0, //rotate y = 80
-											0,0,0);//-350, 0, 0); //translate
-		/*
-		//for soft shadows 
-		Transform transform = new Transform(sc, sc, sc, //scale
-											0,280,0,  	 //rotate
-											0,00,00); //translate				
-		*/
-		FileParser fp = new FileParser();
-		Shape shape = fp.parseObjAndMtlFile(objFilePath);
-		shape.interpolateNormals();
-		System.out.println("Total no. of triangles/faces: " + shape.getNoOfFaces());
-		
-		shape.createKDTree();
-		
-		System.out.println("Field of view : \n"+
-						   "\twidth  : "+imagePlaneWidth+"\n"+
-						   "\theight : "+imagePlaneHt);
-
-		int noOfRaysX = g*width;
-		int noOfRaysY = g*height;
-		Ray[][] rays = new Ray[noOfRaysX][noOfRaysY];
-				
-		Point[][] imagePlane = new Point[noOfRaysX][noOfRaysY];
-		
-		double[][] radianceR = new double[noOfRaysX][noOfRaysY];
-		double[][] radianceG = new double[noOfRaysX][noOfRaysY];
-		double[][] radianceB = new double[noOfRaysX][noOfRaysY];
-		
-		double xRange = (imagePlaneXMax - imagePlaneXMin);
-		double yRange = (imagePlaneYMax - imagePlaneYMin);
-		
-		double incX = (double)xRange/noOfRaysX; 
-		double incY = (double)yRange/noOfRaysY;
-		Pixel[][] pixels = new Pixel[noOfRaysX][noOfRaysY];
-		
-		double m = imagePlaneXMin; //row
-		for(int i = 0; i < noOfRaysX; i++) {
-			double n = imagePlaneYMax; //column
-			for(int j = 0; j < noOfRaysY; j++) {
-				
-				pixels[i][j] = new Pixel(m, n, m + incX, n - incY, imagePlaneZ);
-				pixels[i][j].row = i; pixels[i][j].column = j;
-				n = n - incY;
-			}
-			m = m + incX;	
-		}
-		
-		//add jitter to image plane
-		if(g > 1) {
-			for(int i = 0; i < noOfRaysX; i++) {
-				for(int j = 0; j < noOfRaysY; j++) {
-						pixels[i][j].addJitter();
-				}
-			}
-		}
-		
-		for(int i = 0; i < noOfRaysX; i++) {
-			for(int j = 0; j < noOfRaysY; j++) {
-				imagePlane[i][j] = pixels[i][j].position;
-			}
-		}
-		
-		//initialize ray origin and direction
-		for(int i = 0; i < noOfRaysX; i++) {
-			for(int j = 0; j < noOfRaysY; j++) {
-				rays[i][j] = new Ray(eye[0], eye[1], eye[2], imagePlane[i][j].x - eye[0], imagePlane[i][j].y - eye[1], imagePlane[i][j].z -  eye[2]);
-			}			
-		}
-		
-		System.out.println("Tracing...");
-		//start tracing
-		for(int i = 0; i < noOfRaysX; i++) {
-			for(int j = 0; j < noOfRaysY; j++) {
-				double[] finalColor = new double[3];
-				
-				Point p = shape.intersectedByRay(rays[i][j], light, transform);
-				if(p != null) {				
-					double[] shadowColor = new double[3];
-					
-					for(int k = 0; k < light.points.length; k++) {
-						for(int l = 0; l < light.points[0].length; l++) {
-							double t = 0.001f;
-							double x0 = (1 - t)*p.x + t*light.points[k][l].x,
-						    y0 = (1 - t)*p.y + t*light.points[k][l].y,
-						    z0 = (1 - t)*p.z + t*light.points[k][l].z;
-							double[] shadowDir = {light.points[k][l].x-x0, light.points[k][l].y-y0, light.points[k][l].z-z0};
-							Ray shadowRay = new Ray(x0, y0, z0, shadowDir[0], shadowDir[1], shadowDir[2]);
-							//find cos of angle between normal and shadow ray
-							shadowDir = normalize(shadowDir);	
-							double AdotB = dotProduct(p.normal, shadowDir);
-							//cos(theta) = A dot B / |A| * |B|
-							double cos = AdotB;
-							if(cos <= 0 ) {//  <=
-								double d = 0.5f;
-								shadowColor[0]+=p.color[0]*d; shadowColor[1] += p.color[1]*d; shadowColor[2] += p.color[2]*d  ;
-							} else {
-								ArrayList<Point> intersectionPts = new ArrayList<Point>();
-								
-								Point p1 = shape.intersectedByRay(shadowRay, light, transform);
-								intersectionPts.add(p1);
-								Point p2 = light.points[k][l];//shadowRay.intersectsLightSource(light, transform);
-								intersectionPts.add(p2);
-								Point closest = p.closestIntersection(intersectionPts);
-								if(closest != null)
-									if(!closest.equals(p2)) {//if closest pt is not the light source, 
-															 //then pt is not visible
-										//make the color darker, to indicate shadow
-										double d = 0.5f;
-										shadowColor[0]+=p.color[0]*d; shadowColor[1] += p.color[1]*d; shadowColor[2] += p.color[2]*d  ;
-								} else { //visible
-									shadowColor[0] += p.color[0];shadowColor[1] += p.color[1]; shadowColor[2] += p.color[2];
-								}
-							}
-						}//light j
-					}//light i
-					//shadow
-						
-					int noOfLightSamples = light.points.length * light.points[0].length;
-					shadowColor[0] /= noOfLightSamples;
-					shadowColor[1] /= noOfLightSamples;		
-					shadowColor[2] /= noOfLightSamples;
-							
-					finalColor[0] = shadowColor[0];
-					finalColor[1] = shadowColor[1];
-					finalColor[2] = shadowColor[2];
-					
-					
-				}	else finalColor = new double[]{0.815d,0.949d,1};//sky blue
-				radianceR[i][j] += finalColor[0]; radianceG[i][j] += finalColor[1]; radianceB[i][j] += finalColor[2];
-			}
-		}
-		
-		//initialize the output image, whose pixels will be set using values calculated above
-		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+		//camera at (230, 350, 1100), image plane at z = 500, 800 x 600 pixels,
+		//light at (0, 700, 200), scene rotated by (350, 285, 0) degrees
+		RenderJob job = new RenderJob(objFilePath);
+		job.grid = g;
+		//job.eye = new double[]{-200, 550, 1200}; job.rotate = new double[]{0, 280, 0}; //for soft shadows output
 		
-		//set color
-		double R, G, B;
-		for(int i = 0; i < noOfRaysX - g; i+=g) {
-			for(int j = 0; j < noOfRaysY - g; j+=g) {
-				R = 0; G = 0; B = 0;
-				
-				//add all samples that lie inside one grid
-				for(int k = 0; k < g; k++) {
-					for(int p = 0; p < g; p++) {
-						double sigma = Math.sqrt((double)1/(2*Math.PI));
-						int dx = k - g/2, dy = p - g/2;
-						double gaussian = (Math.exp(-(double)(dx*dx + dy*dy)/(2*sigma*sigma)));
-						
-						gaussian = (double)((gaussian - (-1))*(g - 0))/(1 - (-1)) + 0;
-						gaussian = 1; //box
-						R += gaussian*radianceR[i + k][j + p];
-						G += gaussian*radianceG[i + k][j + p];
-						B += gaussian*radianceB[i + k][j + p];
-					}
-				}
-				
-				//divide by g*g to get average color for the pixel
-				R = (double)R/(g*g);  
-				G = (double)G/(g*g);  
-				B = (double)B/(g*g);  
-				
-				if(R > 1) R = 1; 
-				if(G > 1) G = 1;
-				if(B > 1) B = 1;
-				
-				image.setRGB(i/g, j/g, new Color((float)R, (float)G, (float)B).getRGB());
-			}
-		}
+		FrameBuffer frameBuffer = render(job);
 		
-		//reconstruction
-		//box filter for now
-		int boxLength = 9; //keep value odd	
-		double[][] R2 = radianceR, G2 = radianceG, B2 = radianceB;
-		for(int i = boxLength/2; i < noOfRaysX - boxLength/2; i++) {
-			for(int j = boxLength/2; j < noOfRaysY  - boxLength/2; j++) {
-				
-				for(int k = - boxLength/2; k <= boxLength/2; k++) {
-					for(int l = - boxLength/2; l <= boxLength/2; l++) {
-						R2[i][j] += radianceR[i + k][j + l];
-						G2[i][j] += radianceG[i + k][j + l];
-						B2[i][j] += radianceB[i + k][j + l];
-					}
-				}
-				R2[i][j] = (double)R2[i][j]/(boxLength*boxLength);
-				G2[i][j] = (double)G2[i][j]/(boxLength*boxLength);
-				B2[i][j] = (double)B2[i][j]/(boxLength*boxLength);
-				
-			}
-		}
-				
-		radianceR = R2; radianceG = G2; radianceB = B2;
+		//the output image, whose pixels are set using the average of all samples in a pixel
+		BufferedImage image = frameBuffer.toImage();
 		
 		long finishTime = System.currentTimeMillis();
 		long timeTaken = (finishTime - startTime);
@@ -280,7 +108,7 @@ public class World {
 		Graphics2D g2d = image.createGraphics();
 	    g2d.drawImage(image, 0, 0, null);
 	    JFrame frame = new JFrame("Ray Tracing - Cornell Box");
-		frame.setSize(width, height);
+		frame.setSize(job.width, job.height);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		JPanel panel = new JPanel();
 		panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
@@ -288,10 +116,10 @@ public class World {
 	    
 	    JLabel infoLabel = new JLabel();
 	    String info = renderTime;
-	    info += "<br>Super-sampling grid size: " + g + " x " + g;
-	    info += "<br>Focal plane at z = " + imagePlaneZ;
-	    info += "<br>Camera at (" +eye[0]+", "+eye[1]+", "+eye[2]+")";
-	    info += "<br>Light at (" + lightPosition[0] + ", " + lightPosition[1] + ", " + lightPosition[2] + ")";
+	    info += "<br>Super-sampling grid size: " + g + " x " + g + (adaptiveThreshold > 0 ? "(adaptive)" : "") + (progressive ? ", progressive" : "");
+	    info += "<br>Focal plane at z = " + job.imagePlaneZ;
+	    info += "<br>Camera at (" +job.eye[0]+", "+job.eye[1]+", "+job.eye[2]+")";
+	    info += "<br>Light at (" + job.lightPosition[0] + ", " + job.lightPosition[1] + ", " + job.lightPosition[2] + ")";
 	    infoLabel.setText("<html><body>" + info + "</body></html>");//using html tags for text formatting
 	    
 	    panel.add(infoLabel); 
@@ -301,7 +129,409 @@ public class World {
 		frame.setVisible(true);
 		frame.setTitle("The Sponza Model using Distributed Ray Tracing");
 	}
+	
+	/**
+	 * Loads the scene of a job and traces its image. Nothing is displayed, 
+	 * so it also runs without a screen(java.awt.headless=true).
+	 * The time taken is available from getLoadTime() and getTraceTime() afterwards.
+	 * 
+	 * @param job	scene, camera and image size
+	 * @return		frame buffer with the samples of all pixels
+	 */
+	public FrameBuffer render(RenderJob job) {
+		long startTime = System.currentTimeMillis();
+		Transform transform = job.createTransform();
+		Shape shape = loadShape(job.objFilePath, transform, isBaked(transform));
+		loadTime = System.currentTimeMillis() - startTime;
+		return render(job, shape);
+	}
+	
+	/**
+	 * Traces the image of a job with a scene that is already loaded, see loadShape().
+	 * The shape is only read, so several renders can share it at the same time.
+	 * 
+	 * @param job	camera and image size, its transform must be the one the shape was loaded with
+	 * @param shape	the scene of the job
+	 * @return		frame buffer with the samples of all pixels
+	 */
+	public FrameBuffer render(RenderJob job, Shape shape) {
+		Transform transform = job.createTransform();
+		System.out.println("Field of view : \n"+
+						   "\twidth  : "+job.width+"\n"+
+						   "\theight : "+job.height);
+		long traceStartTime = System.currentTimeMillis();
+
+		//samples are generated, traced and added to their pixel one at a time,
+		//so memory depends on the output size only
+		FrameBuffer frameBuffer = createFrameBuffer(job);
+		System.out.println("Tracing on " + threads + " thread(s)...");
+		//a baked shape is already in world space
+		samples = trace(job, shape, isBaked(transform) ? null : transform, frameBuffer, 0, 0, job.width, job.height);
+		traceTime = System.currentTimeMillis() - traceStartTime;
+		System.out.println("Traced " + samples + " samples, " + (double)samples/(job.width*job.height) + " per pixel");
+		return reconstruct(frameBuffer);
+	}
+	
+	/**
+	 * @return	an empty frame buffer for the image of a job, with the reconstruction filter
+	 */
+	FrameBuffer createFrameBuffer(RenderJob job) {
+		FrameBuffer frameBuffer = new FrameBuffer(job.width, job.height);
+		frameBuffer.setFilter(filter);
+		return frameBuffer;
+	}
+	
+	/**
+	 * Gives the filtered image of a frame buffer from createFrameBuffer(), see setFilter()
+	 * 
+	 * @return	the filtered frame buffer, or frameBuffer itself for the default box filter
+	 */
+	FrameBuffer reconstruct(FrameBuffer frameBuffer) {
+		if(filter.isIdentity()) return frameBuffer;
+		long startTime = System.currentTimeMillis();
+		FrameBuffer filtered = frameBuffer.reconstruct();
+		System.out.println("Reconstructed with " + filter + " in " + (System.currentTimeMillis() - startTime) + " ms");
+		return filtered;
+	}
+	
+	/**
+	 * @return	true if the transform is applied to the mesh when it is loaded, 
+	 * 			instead of to every ray
+	 */
+	boolean isBaked(Transform transform) {
+		//a transform that keeps the axes gives the same kd-tree in world space, so it is always baked.
+		//Other rotations leave the scene at an angle to the split planes, which can make the tree
+		//much slower to trace than inverse transforming every ray
+		return bakeTransform || transform.getToWorld().keepsAxes();
+	}
+	
+	/**
+	 * @return	a string that is the same for two jobs if loadShape() gives the same shape for both
+	 */
+	String getSceneKey(RenderJob job) {
+		Transform transform = job.createTransform();
+		return job.objFilePath + " " + (isBaked(transform) ? Arrays.toString(transform.getToWorld().getEntries()) : "") +
+			   " tree=" + treeBuilder + " vector=" + vectorKernel;
+	}
+	
+	/**
+	 * Loads a scene and builds its kd-tree, or reads both from the scene cache
+	 * 
+	 * @param objFilePath	path to the .obj and .mtl file containing the 3D model
+	 * @param transform		transformation for the whole scene
+	 * @param bake			true to apply the transform to the mesh, see isBaked()
+	 * @return				the scene
+	 */
+	Shape loadShape(String objFilePath, Transform transform, boolean bake) {
+		SceneCache cache = null;
+		Shape shape = null;
+		if(sceneCache) {
+			try {
+				cache = new SceneCache(objFilePath, treeBuilder, bake ? transform : null);
+				shape = cache.load();
+			} catch (IOException e) {
+				System.out.println("Scene cache disabled: " + e);
+			}
+		}
+		if(shape == null) {
+			FileParser fp = new FileParser();
+			shape = fp.parseObjAndMtlFile(objFilePath);
+			shape.interpolateNormals();
+			if(bake) shape.transformVertices(transform);
+			shape.createKDTree(treeBuilder);
+			if(cache != null) cache.save(shape);
+		}
+		if(vectorKernel) shape.useVectorKernel();
+		System.out.println("Total no. of triangles/faces: " + shape.getNoOfFaces());
+		return shape;
+	}
+	
+	/**
+	 * Traces pixels xMin to xMax - 1 of rows yMin to yMax - 1 of the image of a job
+	 * 
+	 * @param shape			the scene, see loadShape()
+	 * @param transform		transformation for the whole scene, null if the shape is in world space
+	 * @param frameBuffer	frame buffer of the whole image, receives the samples
+	 * @return				no. of samples traced
+	 */
+	long trace(RenderJob job, Shape shape, Transform transform, FrameBuffer frameBuffer,
+			   int xMin, int yMin, int xMax, int yMax) {
+		int g = job.grid;
+		Camera camera = job.createCamera();
+		LightSource light = job.createLight();
+		long samples;
+		
+		ForkJoinPool pool = getPool();
+		if(progressive || adaptiveThreshold > 0) {
+			AdaptiveSampler sampler = new AdaptiveSampler(frameBuffer, g, adaptiveThreshold, xMin, yMin, xMax, yMax);
+			traceProgressive(pool, new RenderTile(this, camera, frameBuffer, g, sampler, shape, light, transform,
+												  xMin, yMin, xMax, yMax), sampler, frameBuffer, g);
+			samples = sampler.getSamples();
+		} else {
+			trace(pool, new RenderTile(this, camera, frameBuffer, g, null, shape, light, transform,
+									   xMin, yMin, xMax, yMax));
+			samples = (long)(xMax - xMin)*(yMax - yMin)*g*g;
+		}
+		return samples;
+	}
+	
+	/**
+	 * The pool is kept for the next call, e.g. the next tile of a RenderWorker,
+	 * so its threads are not started again. They are daemon threads.
+	 * 
+	 * @return	pool of the render threads, null if threads is 1
+	 */
+	private synchronized ForkJoinPool getPool() {
+		if(threads == 1) return null;
+		if(pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/**
+	 * Traces the image in passes, each adding samples to the frame buffer.
+	 * With adaptive super-sampling a pass is a round of the sampler, else it adds one sample
+	 * to every pixel, up to targetSamples. The first pass is always traced, later ones only
+	 * if they are expected to end within the time budget, i.e. if the last pass would.
+	 * In progressive mode the frame listener gets the image after each pass.
+	 * 
+	 * @param allPixels		tile of all pixels to trace, using the sampler
+	 * @param frameBuffer	frame buffer of the tile
+	 * @param g    			size of grid for super-sampling
+	 */
+	private void traceProgressive(ForkJoinPool pool, RenderTile allPixels, AdaptiveSampler sampler, FrameBuffer frameBuffer, int g) {
+		long start = System.currentTimeMillis(), passStart = start;
+		int samplesPerPixel = (targetSamples > 0) ? targetSamples : g*g;
+		for(int pass = 1; ; pass++) {
+			trace(pool, allPixels);
+			sampler.endRound();
+			long now = System.currentTimeMillis();
+			long passTime = now - passStart; //including the work between passes
+			passStart = now;
+			
+			boolean last;
+			if(progressive && timeBudget > 0 && (now - start) + passTime > timeBudget) {
+				last = true;
+			} else if(adaptiveThreshold > 0) {
+				last = sampler.refine() == 0;
+			} else {
+				last = pass >= samplesPerPixel;
+				if(!last) sampler.addSample();
+			}
+			
+			if(progressive) {
+				System.out.println("Pass " + pass + ": " + (double)sampler.getSamples()/sampler.getPixels() +
+								   " samples per pixel, " + (now - start)/1000d + " seconds");
+				if(frameListener != null) frameListener.frameRendered(frameBuffer.reconstruct(), pass, last);
+			}
+			if(last) return;
+		}
+	}
+	
+	/**
+	 * Traces all pixels of a tile, in the pool or serially if there is none.
+	 * The same tile can be traced again, e.g. for the next pass.
+	 */
+	private void trace(ForkJoinPool pool, RenderTile allPixels) {
+		if(pool != null) {
+			allPixels.reinitialize();
+			pool.invoke(allPixels);
+		} else {
+			allPixels.trace(); //serial path
+		}
+	}
+	
+	/**
+	 * Finds the color seen along one camera ray, 
+	 * including the soft shadow from the area light.
+	 * It only reads shared scene data, so it can be called from several threads at once.
+	 * 
+	 * @param ray			camera ray
+	 * @param shape			the scene
+	 * @param light			LightSource object
+	 * @param transform		transformation for the whole scene, null if the shape is in world space
+	 * @return				RGB radiance for the ray
+	 */
+	public double[] traceRay(Ray ray, Shape shape, LightSource light, Transform transform) {
+		return shade(shape.intersectedByRay(ray, light, transform), shape, light, transform);
+	}
+	
+	/**
+	 * Finds the colors seen along a packet of neighbouring camera rays.
+	 * The rays are traced through the kd-tree together, see KDTree.traversePacket().
+	 * 
+	 * @param packet		camera rays
+	 * @param shape			the scene
+	 * @param light			LightSource object
+	 * @param transform		transformation for the whole scene, null if the shape is in world space
+	 * @return				RGB radiance for each ray
+	 */
+	public double[][] tracePacket(RayPacket packet, Shape shape, LightSource light, Transform transform) {
+		Point[] points = shape.intersectedByPacket(packet, light, transform);
+		double[][] colors = new double[packet.n][];
+		for(int i = 0; i < packet.n; i++) {
+			colors[i] = shade(points[i], shape, light, transform);
+		}
+		return colors;
+	}
+	
+	/**
+	 * Adds the soft shadow from the area light to a shaded intersection point
+	 * 
+	 * @param p				intersection point, null if the ray hit nothing
+	 * @return				RGB radiance
+	 */
+	private double[] shade(Point p, Shape shape, LightSource light, Transform transform) {
+		double[] finalColor = new double[3];
+		
+		if(p != null) {				
+			double[] shadowColor = new double[3];
+			
+			for(int k = 0; k < light.points.length; k++) {
+				for(int l = 0; l < light.points[0].length; l++) {
+					double t = 0.001f;
+					double x0 = (1 - t)*p.x + t*light.points[k][l].x,
+				    y0 = (1 - t)*p.y + t*light.points[k][l].y,
+				    z0 = (1 - t)*p.z + t*light.points[k][l].z;
+					double[] shadowDir = {light.points[k][l].x-x0, light.points[k][l].y-y0, light.points[k][l].z-z0};
+					//find cos of angle between normal and shadow ray
+					shadowDir = normalize(shadowDir);	
+					double AdotB = dotProduct(p.normal, shadowDir);
+					//cos(theta) = A dot B / |A| * |B|
+					double cos = AdotB;
+					if(cos <= 0 ) {//  <=
+						double d = 0.5f;
+						shadowColor[0]+=p.color[0]*d; shadowColor[1] += p.color[1]*d; shadowColor[2] += p.color[2]*d  ;
+					} else if(shape.occluded(new Point(x0, y0, z0), light.points[k][l], transform)) {
+						//if anything lies between the point and the light source, 
+						//then the light is not visible
+						//make the color darker, to indicate shadow
+						double d = 0.5f;
+						shadowColor[0]+=p.color[0]*d; shadowColor[1] += p.color[1]*d; shadowColor[2] += p.color[2]*d  ;
+					} else { //visible
+						shadowColor[0] += p.color[0];shadowColor[1] += p.color[1]; shadowColor[2] += p.color[2];
+					}
+				}//light j
+			}//light i
+			//shadow
+				
+			int noOfLightSamples = light.points.length * light.points[0].length;
+			shadowColor[0] /= noOfLightSamples;
+			shadowColor[1] /= noOfLightSamples;		
+			shadowColor[2] /= noOfLightSamples;
+					
+			finalColor[0] = shadowColor[0];
+			finalColor[1] = shadowColor[1];
+			finalColor[2] = shadowColor[2];
+			
+			
+		}	else finalColor = new double[]{0.815d,0.949d,1};//sky blue
+		return finalColor;
+	}
+
+	/**
+	 * Stops the render threads when the World is no longer used.
+	 * A later render starts new ones.
+	 */
+	synchronized void shutdown() {
+		if(pool != null) pool.shutdown();
+		pool = null;
+	}
 
+	public synchronized void setThreads(int threads1) {
+		threads = Math.max(1, threads1);
+		if(pool != null && pool.getParallelism() != threads) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	public void setSeed(long seed1) {
+		seed = seed1;
+	}
+	
+	public void setTreeBuilder(int treeBuilder1) {
+		treeBuilder = treeBuilder1;
+	}
+	
+	public void setSceneCache(boolean sceneCache1) {
+		sceneCache = sceneCache1;
+	}
+	
+	public void setBakeTransform(boolean bakeTransform1) {
+		bakeTransform = bakeTransform1;
+	}
+	
+	public void setPacketSize(int packetSize1) {
+		packetSize = Math.max(1, packetSize1);
+	}
+	
+	public void setVectorKernel(boolean vectorKernel1) {
+		vectorKernel = vectorKernel1;
+	}
+	
+	/**
+	 * @param adaptiveThreshold1	luminance difference(0 to 1) above which a pixel gets more samples,
+	 * 								e.g. 0.02; 0 traces the full grid for every pixel
+	 */
+	public void setAdaptiveThreshold(double adaptiveThreshold1) {
+		adaptiveThreshold = Math.max(0, adaptiveThreshold1);
+	}
+	
+	/**
+	 * Renders in passes, see traceProgressive()
+	 * 
+	 * @param timeBudget1		ms after which no more passes are started, 0 : no limit
+	 * @param targetSamples1	samples per pixel after the last pass, 0 : g x g.
+	 * 							Not used with adaptive super-sampling, which stops by itself
+	 */
+	public void setProgressive(long timeBudget1, int targetSamples1) {
+		progressive = true;
+		timeBudget = Math.max(0, timeBudget1);
+		targetSamples = Math.max(0, targetSamples1);
+	}
+	
+	public void setFrameListener(FrameListener frameListener1) {
+		frameListener = frameListener1;
+	}
+	
+	/**
+	 * @param type		ReconstructionFilter.BOX(default), GAUSSIAN or MITCHELL
+	 * @param radius	in pixels, at least 0.5, 0 : the default of the filter
+	 * @throws IllegalArgumentException	for a radius between 0 and 0.5
+	 */
+	public void setFilter(int type, double radius) {
+		filter = new ReconstructionFilter(type, radius);
+	}
+	
+	/**
+	 * @return	ms taken by the last render() to load the scene or build its kd-tree
+	 */
+	public long getLoadTime() {
+		return loadTime;
+	}
+	
+	/**
+	 * @return	ms taken by the last render() to trace the image
+	 */
+	public long getTraceTime() {
+		return traceTime;
+	}
+	
+	/**
+	 * @return	no. of camera rays traced by the last render()
+	 */
+	public long getSamples() {
+		return samples;
+	}
+	
+	public int getPacketSize() {
+		return packetSize;
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
 	private double dotProduct(double[] A, double[] B) {
 		double dp = A[0]*B[0] +A[1]*B[1] +A[2]*B[2];		
 		//if product is less than 0, return 0
@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Class ObjChunkTest checks that the obj parser reads valid statements that it used to reject.
+ * It needs no test library :
+ *
+ * 	javac -cp out -d out test/*.java
+ * 	java -cp out ObjChunkTest
+ *
+ * The exit code is 1 if a check fails.
+ *
+ * @author Kirti M D
+ *
+ */
+public class ObjChunkTest {
+
+	private static int failed = 0;
+
+	public static void main(String[] args) throws IOException {
+		smoothingOn();
+		oneTextureCoordinate();
+		faceAtEndOfFile();
+		severalMtllibs();
+		if(failed > 0) {
+			System.out.println(failed + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * s on is the same as s 1
+	 */
+	private static void smoothingOn() throws IOException {
+		Mesh mesh = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\n" +
+						  "s on\nf 1 2 3\ns off\nf 2 4 3\ns 2\nf 1 3 2\n");
+		check("s on: no. of triangles", mesh.noOfTriangles, 3);
+		check("s on: group", mesh.smoothingGroups[0], 1);
+		check("s off: group", mesh.smoothingGroups[1], -1);
+		check("s 2: group", mesh.smoothingGroups[2], 2);
+	}
+
+	/**
+	 * vt with only u(1D texture) gets v = 0, and a third coordinate w is ignored
+	 */
+	private static void oneTextureCoordinate() throws IOException {
+		Mesh mesh = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\n" +
+						  "vt 0.25\nvt 0.5 0.75\nvt 0.125 0.375 1\n" +
+						  "f 1/1 2/2 3/3\n");
+		check("vt: no. of triangles", mesh.noOfTriangles, 1);
+		double[] expected = {0.25, 0, 0.5, 0.75, 0.125, 0.375};
+		for(int c = 0; c < 3; c++) {
+			int t = mesh.uvIndices[c];
+			check("vt " + (c + 1) + ": u", mesh.uvs[2*t], expected[2*c]);
+			check("vt " + (c + 1) + ": v", mesh.uvs[2*t + 1], expected[2*c + 1]);
+		}
+	}
+
+	/**
+	 * The last line may end without a newline, also right after a / with no index
+	 */
+	private static void faceAtEndOfFile() throws IOException {
+		Mesh mesh = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1// 2// 3//");
+		check("f at end: no. of triangles", mesh.noOfTriangles, 1);
+		check("f at end: last vertex", mesh.vertexIndices[2], 2);
+	}
+
+	/**
+	 * An mtllib line can name several mtl files
+	 */
+	private static void severalMtllibs() throws IOException {
+		File dir = Files.createTempDirectory("ObjChunkTest").toFile();
+		File obj = new File(dir, "scene.obj"), a = new File(dir, "a.mtl"), b = new File(dir, "b.mtl");
+		try {
+			Files.write(a.toPath(), "newmtl red\nKd 1 0 0\n".getBytes(StandardCharsets.US_ASCII));
+			Files.write(b.toPath(), "newmtl green\nKd 0 1 0\n".getBytes(StandardCharsets.US_ASCII));
+			Files.write(obj.toPath(), ("mtllib a.mtl\tb.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\n" +
+									   "usemtl green\nf 1 2 3\n").getBytes(StandardCharsets.US_ASCII));
+			Mesh mesh = new FileParser().parseObjAndMtlFile(obj.getPath()).getMesh();
+			Material material = mesh.materials[mesh.materialIds[0]];
+			check("mtllib a b: material of b", material.name.equals("green") ? 1 : 0, 1);
+		} finally {
+			obj.delete(); a.delete(); b.delete(); dir.delete();
+		}
+	}
+
+	private static Mesh parse(String obj) throws IOException {
+		File file = File.createTempFile("ObjChunkTest", ".obj");
+		try {
+			Files.write(file.toPath(), obj.getBytes(StandardCharsets.US_ASCII));
+			return new FileParser().parseObjAndMtlFile(file.getPath()).getMesh();
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void check(String name, double actual, double expected) {
+		if(actual == expected) return;
+		System.out.println("FAILED " + name + ": " + actual + ", expected " + expected);
+		failed++;
+	}
+}